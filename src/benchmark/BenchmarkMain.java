@@ -0,0 +1,64 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package benchmark;
+
+import java.io.File;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all benchmarks in this package and writes the results as JSON, including the allocation rate reported by the
+ * GC profiler. Any arguments are passed to JMH, so for example {@code -p poolSize=65261 MixerBenchmark} narrows the
+ * run.
+ * <p>
+ * Requires <a href="http://openjdk.java.net/projects/code-tools/jmh/">JMH</a> on the class path, and the annotation
+ * processor to have run over this package.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-12
+public class BenchmarkMain {
+	private static final File RESULT_FILE = new File("entropypool-benchmark.json");
+
+	public static void main(String... args) throws RunnerException, CommandLineOptionException {
+		Options commandLine = new CommandLineOptions(args);
+
+		ChainedOptionsBuilder builder = new OptionsBuilder()
+				.parent(commandLine)
+				.addProfiler(GCProfiler.class)
+				.resultFormat(ResultFormatType.JSON)
+				.result(RESULT_FILE.getPath());
+
+		if (commandLine.getIncludes().isEmpty())
+			builder.include(BenchmarkMain.class.getPackage().getName() + '.');
+
+		new Runner(builder.build()).run();
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package benchmark;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.NoSuchPaddingException;
+
+import org.digitalmodular.entropypool.EntropyPool2;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the public operations of {@link EntropyPool2}: injecting, extracting and mixing.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-12
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EntropyPoolBenchmark {
+	static {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+
+	@Benchmark
+	public EntropyPool2 injectEntropy(InjectState state) {
+		state.pool.injectEntropy(state.injectBytes, state.injectBytes.length);
+		return state.pool;
+	}
+
+	@Benchmark
+	public byte[] extractEntropy(ExtractState state) {
+		return state.pool.extractEntropy(state.extractSize);
+	}
+
+	@Benchmark
+	public EntropyPool2 mix(PoolState state) {
+		state.pool.mix();
+		return state.pool;
+	}
+
+	/**
+	 * Every benchmark has its own state with only the parameters it uses, so JMH doesn't run the cross product.
+	 */
+	@State(Scope.Thread)
+	public static class PoolState {
+		@Param({"65261", "1048576", "4194304"})
+		int poolSize;
+
+		EntropyPool2 pool;
+
+		@Setup(Level.Trial)
+		public void setUp() throws NoSuchAlgorithmException, NoSuchPaddingException {
+			pool = new EntropyPool2(poolSize);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class InjectState extends PoolState {
+		@Param({"4096", "1048576"})
+		int injectSize;
+
+		byte[] injectBytes;
+
+		@Setup(Level.Trial)
+		public void setUpInjectBytes() {
+			injectBytes = new byte[injectSize];
+			new SecureRandom().nextBytes(injectBytes);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class ExtractState extends PoolState {
+		@Param({"16", "1024", "8192"})
+		int extractSize;
+
+		private byte[] refillBytes;
+
+		@Setup(Level.Trial)
+		public void setUpRefillBytes() {
+			refillBytes = new byte[poolSize];
+			new SecureRandom().nextBytes(refillBytes);
+		}
+
+		/**
+		 * Keeps enough entropy available for {@link EntropyPoolBenchmark#extractEntropy(ExtractState)}. Injecting
+		 * exactly one pool length leaves the write pointer at 0, so the measured extraction never needs the extra
+		 * pre-mix.
+		 */
+		@Setup(Level.Invocation)
+		public void refill() {
+			if (pool.getAvailableEntropy() < extractSize * 8L)
+				pool.injectEntropy(refillBytes, refillBytes.length * 8);
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package benchmark;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.NoSuchPaddingException;
+
+import org.digitalmodular.entropypool.EntropyPool;
+import org.digitalmodular.entropypool.EncryptedEntropyPoolFile;
+import org.digitalmodular.entropypool.EntropyPool2;
+import org.digitalmodular.entropypool.PoolFileKey;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures (de)serialization of {@link EntropyPool2}, both in memory and through the file system, plain and
+ * encrypted.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-12
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoadSaveBenchmark {
+	static {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+
+	@Param({"65261", "1048576", "4194304"})
+	private int poolSize;
+
+	private EntropyPool2 pool;
+	private byte[]       serialized;
+	private int          headerLength;
+
+	private File poolFile;
+	private File bakFile;
+	private File tempFile;
+
+	private File        encryptedFile;
+	private File        keyFile;
+	private PoolFileKey key;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, NoSuchAlgorithmException, NoSuchPaddingException {
+		pool = new EntropyPool2(poolSize);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(poolSize + 1024);
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			pool.writeTo(out);
+		}
+		serialized = bytes.toByteArray();
+
+		// EntropyPool2.readFrom() expects the stream positioned just past the header
+		ByteArrayOutputStream header = new ByteArrayOutputStream(64);
+		try (DataOutputStream out = new DataOutputStream(header)) {
+			out.writeBytes(EntropyPool.MAGIC);
+			out.writeUTF(EntropyPool.PROGRAM_TITLE);
+			EntropyPool.CURRENT_VERSION.writeTo(out);
+		}
+		headerLength = header.size();
+
+		File directory = Files.createTempDirectory("entropypool-benchmark").toFile();
+		poolFile = new File(directory, "entropypool.bin");
+		bakFile = new File(directory, "entropypool.bak");
+		tempFile = new File(directory, "entropypool.tmp");
+
+		pool.saveToFile(poolFile, bakFile, tempFile);
+
+		encryptedFile = new File(directory, "entropypool.enc");
+		keyFile = new File(directory, "entropypool.key");
+		PoolFileKey.generateKeyFile(keyFile, new SecureRandom());
+		key = PoolFileKey.fromKeyFile(keyFile);
+
+		EncryptedEntropyPoolFile.saveToFile(pool, encryptedFile, bakFile, tempFile, key);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		poolFile.delete();
+		bakFile.delete();
+		tempFile.delete();
+		encryptedFile.delete();
+		keyFile.delete();
+		key.destroy();
+		poolFile.getParentFile().delete();
+	}
+
+	@Benchmark
+	public byte[] writeTo() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(serialized.length);
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			pool.writeTo(out);
+		}
+		return bytes.toByteArray();
+	}
+
+	@Benchmark
+	public EntropyPool2 readFrom() throws IOException {
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(serialized))) {
+			in.skipBytes(headerLength);
+			return EntropyPool2.readFrom(in);
+		}
+	}
+
+	@Benchmark
+	public File saveToFile() throws IOException {
+		pool.saveToFile(poolFile, bakFile, tempFile);
+		return poolFile;
+	}
+
+	@Benchmark
+	public EntropyPool2 loadFromFile() throws IOException {
+		return EntropyPool2.loadFromFile(poolFile);
+	}
+
+	@Benchmark
+	public File saveToFileEncrypted() throws IOException {
+		EncryptedEntropyPoolFile.saveToFile(pool, encryptedFile, bakFile, tempFile, key);
+		return encryptedFile;
+	}
+
+	@Benchmark
+	public EntropyPool2 loadFromFileEncrypted() throws IOException {
+		return EncryptedEntropyPoolFile.loadFromFile(encryptedFile, key);
+	}
+}
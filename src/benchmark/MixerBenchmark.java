@@ -0,0 +1,88 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package benchmark;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.Security;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.NoSuchPaddingException;
+
+import org.digitalmodular.entropypool.*;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures every {@link EntropyPoolMixer} on its own, and the default chain through {@link MultipleMixer}.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-12
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MixerBenchmark {
+	static {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+
+	@Param({"65261", "1048576", "4194304"})
+	private int poolSize;
+
+	@Param({"Whiten", "Permute", "Rehash", "Cipher", "Multiple"})
+	private String mixerName;
+
+	private EntropyPool2     pool;
+	private EntropyPoolMixer mixer;
+
+	@Setup(Level.Trial)
+	public void setUp() throws NoSuchAlgorithmException, NoSuchPaddingException {
+		pool = new EntropyPool2(poolSize);
+		mixer = createMixer(mixerName);
+	}
+
+	static EntropyPoolMixer createMixer(String mixerName) {
+		switch (mixerName) {
+			case "Whiten":
+				return new WhitenMixer();
+			case "Permute":
+				return new PermuteMixer();
+			case "Rehash":
+				return new RehashMixer();
+			case "Cipher":
+				return new CipherMixer();
+			case "Multiple":
+				return new MultipleMixer(new WhitenMixer(), new PermuteMixer(), new RehashMixer());
+			default:
+				throw new IllegalArgumentException("Unknown mixer: " + mixerName);
+		}
+	}
+
+	@Benchmark
+	public EntropyPool2 mix() {
+		mixer.mix(pool);
+		return pool;
+	}
+}
@@ -0,0 +1,91 @@
+package example;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Security;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.NoSuchPaddingException;
+
+import org.digitalmodular.utilities.LoggerUtilities;
+import org.digitalmodular.entropypool.EntropyPool2;
+import org.digitalmodular.entropypool.EntropyPoolDaemon;
+import org.digitalmodular.entropypool.EntropyPoolPersister;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * Loads the pool once and serves it until the process is stopped. Use an
+ * {@link org.digitalmodular.entropypool.EntropyPoolClient} to inject and extract. It authenticates with the token in
+ * {@link EntropyPoolDaemon#DEFAULT_TOKEN_FILE}, which the daemon creates on its first start.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-29
+@SuppressWarnings("ALL")
+public class EntropyPoolDaemonExampleMain {
+	private static final File ENTROPY_POOL_FILE      = new File("r:\\entropypool.bin");
+	private static final File ENTROPY_POOL_FILE_BAK  = new File("r:\\entropypool.bak");
+	private static final File ENTROPY_POOL_FILE_TEMP = new File("r:\\entropypool.tmp");
+
+	static {
+		Security.addProvider(new BouncyCastleProvider());
+		LoggerUtilities.configure(Level.ALL);
+	}
+
+	public static void main(String... args) throws InterruptedException {
+		EntropyPool2 pool;
+		try {
+			if (ENTROPY_POOL_FILE.exists() && ENTROPY_POOL_FILE.canRead()) {
+				pool = EntropyPool2.loadFromFile(ENTROPY_POOL_FILE);
+				pool.incrementAccessCount();
+			} else {
+				pool = EntropyPool2.newInstance();
+			}
+		} catch (IOException | NoSuchAlgorithmException | NoSuchPaddingException ex) {
+			Logger.getGlobal().log(Level.SEVERE, ex.getMessage(), ex);
+			return;
+		}
+
+		EntropyPoolPersister persister;
+		try {
+			persister = new EntropyPoolPersister(
+					pool, ENTROPY_POOL_FILE, ENTROPY_POOL_FILE_BAK, ENTROPY_POOL_FILE_TEMP);
+		} catch (IOException ex) {
+			Logger.getGlobal().log(Level.SEVERE, ex.getMessage(), ex);
+			return;
+		}
+
+		EntropyPoolDaemon daemon;
+		try {
+			daemon = new EntropyPoolDaemon(pool);
+		} catch (IOException ex) {
+			Logger.getGlobal().log(Level.SEVERE, ex.getMessage(), ex);
+			closePersister(persister);
+			return;
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				daemon.close();
+			} catch (IOException ex) {
+				Logger.getGlobal().log(Level.SEVERE, ex.getMessage(), ex);
+			}
+
+			closePersister(persister);
+		}));
+
+		daemon.awaitClose();
+	}
+
+	private static void closePersister(EntropyPoolPersister persister) {
+		try {
+			persister.close();
+		} catch (IOException ex) {
+			Logger.getGlobal().log(Level.SEVERE, ex.getMessage(), ex);
+		}
+	}
+}
@@ -0,0 +1,414 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import static java.util.Objects.requireNonNull;
+
+import static org.digitalmodular.utilities.ArrayUtilities.xor;
+import static org.digitalmodular.utilities.Verifier.requireState;
+import static org.digitalmodular.utilities.Verifier.requireThat;
+
+/**
+ * Front for an {@link EntropyPool2} that keeps mixing off the injecting thread.
+ * <p>
+ * Injections are XORed into the front half of a double-buffered staging area and return immediately. A dedicated
+ * mixer thread swaps the halves, folds the back half into the pool and mixes it. Every injection gets a sequence
+ * number, and {@link #awaitMixed(long)} blocks until everything up to that number has been mixed. A producer only
+ * blocks when both halves are full. If the mixer thread stops, whether it died or the pool was closed, blocked and
+ * later producers get an {@link IllegalStateException} instead of waiting for it forever.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-15
+public class BackgroundMixingEntropyPool implements EntropyPool, Closeable {
+	private final EntropyPool2 pool;
+	private final Object       stagingLock = new Object();
+	private final Thread       mixerThread;
+	private final PoolSnapshot snapshot    = new PoolSnapshot();
+
+	// Guarded by stagingLock
+	private ByteBuffer front;
+	private int        frontFill;
+	private long       frontEntropyBits;
+	private long       frontSequence;
+	private ByteBuffer back;
+	private int        backFill;
+	private long       backEntropyBits;
+	private long       backSequence;
+	private boolean    backPending;
+	private long       submittedSequence;
+	private long       mixedSequence;
+	private boolean    closed;
+	private Throwable  mixerFailure;
+	private boolean    mixerStopped;
+
+	// Guarded by pool
+	private long foldedSequence;
+
+	public BackgroundMixingEntropyPool(EntropyPool2 pool) {
+		requireNonNull(pool, "pool == null");
+
+		this.pool = pool;
+
+		front = ByteBuffer.allocate(pool.storage().length()).order(ByteOrder.nativeOrder());
+		back = ByteBuffer.allocate(pool.storage().length()).order(ByteOrder.nativeOrder());
+
+		mixerThread = new Thread(this::runMixer, "EntropyPool mixer");
+		mixerThread.setDaemon(true);
+		mixerThread.start();
+	}
+
+	@Override
+	public void injectEntropy(byte[] bytes, int entropyBits) {
+		submit(bytes, entropyBits);
+	}
+
+	@Override
+	public void injectEntropy(ByteBuffer source, int entropyBits) {
+		submit(source, entropyBits);
+	}
+
+	/**
+	 * Stages the bytes for injection and returns without mixing.
+	 *
+	 * @return the sequence number of this injection, to be used with {@link #awaitMixed(long)}
+	 */
+	public long submit(byte[] bytes, int entropyBits) {
+		requireThat(bytes.length > 0, "bytes.length == 0");
+
+		return submit(ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder()), entropyBits);
+	}
+
+	/**
+	 * Stages the remaining bytes of {@code source} for injection and returns without mixing.
+	 *
+	 * @return the sequence number of this injection, to be used with {@link #awaitMixed(long)}
+	 */
+	public long submit(ByteBuffer source, int entropyBits) {
+		requireThat(source.hasRemaining(), "source.remaining() == 0");
+		requireThat(entropyBits >= 0 && entropyBits <= source.remaining() * 8L,
+		            "entropyBits out of range [0, " + source.remaining() * 8L + "]: " + entropyBits);
+
+		synchronized (stagingLock) {
+			requireState(!closed, "closed");
+			requireMixerAlive();
+
+			while (source.hasRemaining()) {
+				if (frontFill == front.capacity())
+					awaitFreeFront();
+
+				int count = Math.min(source.remaining(), front.capacity() - frontFill);
+				xor(front, frontFill, source, source.position(), count);
+				source.position(source.position() + count);
+				frontFill += count;
+			}
+
+			frontEntropyBits += entropyBits;
+			frontSequence = ++submittedSequence;
+
+			stagingLock.notifyAll();
+			return frontSequence;
+		}
+	}
+
+	/**
+	 * Blocks until all injections up to and including the given sequence number have been mixed into the pool.
+	 *
+	 * @throws IllegalStateException when the mixer thread stopped before mixing them
+	 */
+	public void awaitMixed(long sequence) throws InterruptedException {
+		synchronized (stagingLock) {
+			requireThat(sequence <= submittedSequence,
+			            "sequence > submittedSequence: " + sequence + " > " + submittedSequence);
+
+			while (mixedSequence < sequence) {
+				requireMixerAlive();
+				stagingLock.wait();
+			}
+		}
+	}
+
+	public long getSubmittedSequence() {
+		synchronized (stagingLock) {
+			return submittedSequence;
+		}
+	}
+
+	public long getMixedSequence() {
+		synchronized (stagingLock) {
+			return mixedSequence;
+		}
+	}
+
+	@Override
+	public byte[] extractEntropy(int numBytes) {
+		synchronized (pool) {
+			drainAll();
+			byte[] bytes = pool.extractEntropy(numBytes);
+			markMixed();
+			return bytes;
+		}
+	}
+
+	@Override
+	public void extractEntropy(byte[] bytes, int offset, int length) {
+		synchronized (pool) {
+			drainAll();
+			pool.extractEntropy(bytes, offset, length);
+			markMixed();
+		}
+	}
+
+	@Override
+	public void extractEntropy(ByteBuffer target) {
+		synchronized (pool) {
+			drainAll();
+			pool.extractEntropy(target);
+			markMixed();
+		}
+	}
+
+	@Override
+	public long getInjectedEntropy() {
+		synchronized (pool) {
+			return pool.getInjectedEntropy();
+		}
+	}
+
+	@Override
+	public long getExtractedEntropy() {
+		synchronized (pool) {
+			return pool.getExtractedEntropy();
+		}
+	}
+
+	@Override
+	public long getAvailableEntropy() {
+		synchronized (pool) {
+			return pool.getAvailableEntropy();
+		}
+	}
+
+	@Override
+	public void mix() {
+		synchronized (pool) {
+			drainAll();
+			pool.mix();
+			if (!pool.isMixPending())
+				markMixed();
+		}
+	}
+
+	@Override
+	public void beginBatch() {
+		synchronized (pool) {
+			pool.beginBatch();
+		}
+	}
+
+	@Override
+	public void commitBatch() {
+		synchronized (pool) {
+			drainAll();
+			pool.commitBatch();
+			if (!pool.isMixPending())
+				markMixed();
+		}
+	}
+
+	/**
+	 * Captures a snapshot and writes it without holding up the pool.
+	 */
+	public void saveToFile(File poolFile, File bakFile, File tempFile) throws IOException {
+		synchronized (snapshot) {
+			synchronized (pool) {
+				drainAll();
+				snapshot.capture(pool);
+			}
+
+			try {
+				snapshot.saveToFile(poolFile, bakFile, tempFile);
+			} finally {
+				snapshot.clear();
+			}
+		}
+	}
+
+	/**
+	 * Stops the mixer thread after it has mixed everything that was staged.
+	 */
+	@Override
+	public void close() {
+		synchronized (stagingLock) {
+			closed = true;
+			stagingLock.notifyAll();
+		}
+
+		try {
+			mixerThread.join();
+		} catch (InterruptedException ignored) {
+			Thread.currentThread().interrupt();
+		}
+
+		// Wake producers that started before the close and now wait for a mixer that's gone
+		synchronized (stagingLock) {
+			stagingLock.notifyAll();
+		}
+	}
+
+	private void awaitFreeFront() {
+		while (backPending) {
+			requireMixerAlive();
+
+			try {
+				stagingLock.wait();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for the mixer", ex);
+			}
+		}
+
+		swap();
+	}
+
+	/** Must hold stagingLock. Producers would otherwise wait forever for a mixer that's gone. */
+	private void requireMixerAlive() {
+		if (mixerFailure != null)
+			throw new IllegalStateException("The mixer thread died", mixerFailure);
+		if (mixerStopped)
+			throw new IllegalStateException("The mixer thread stopped");
+	}
+
+	/** Must hold stagingLock. */
+	private boolean hasStaged() {
+		return backPending || frontFill > 0 || frontEntropyBits > 0;
+	}
+
+	/** Must hold stagingLock, and back must not be pending. */
+	private void swap() {
+		ByteBuffer temp = back;
+		back = front;
+		front = temp;
+
+		backFill = frontFill;
+		backEntropyBits = frontEntropyBits;
+		backSequence = frontSequence;
+		backPending = true;
+
+		frontFill = 0;
+		frontEntropyBits = 0;
+
+		stagingLock.notifyAll();
+	}
+
+	private void runMixer() {
+		try {
+			while (true) {
+				synchronized (stagingLock) {
+					while (!closed && !hasStaged())
+						stagingLock.wait();
+
+					if (closed && !hasStaged())
+						return;
+				}
+
+				synchronized (pool) {
+					if (drain()) {
+						// Folding a full half may already have mixed when the pool's write pointer wrapped
+						if (pool.isMixPending())
+							pool.mixNow();
+
+						markMixed();
+					}
+				}
+			}
+		} catch (InterruptedException | RuntimeException | Error ex) {
+			Logger.getGlobal().log(Level.SEVERE, "Mixer thread died", ex);
+
+			synchronized (stagingLock) {
+				mixerFailure = ex;
+			}
+		} finally {
+			synchronized (stagingLock) {
+				mixerStopped = true;
+				stagingLock.notifyAll();
+			}
+		}
+	}
+
+	/** Must hold the pool lock. Drains both halves, so at most two passes are needed. */
+	private void drainAll() {
+		drain();
+		drain();
+	}
+
+	/**
+	 * Folds the back half into the pool, swapping first if the back half is empty. Must hold the pool lock.
+	 *
+	 * @return whether anything was folded
+	 */
+	private boolean drain() {
+		synchronized (stagingLock) {
+			if (!backPending) {
+				if (!hasStaged())
+					return false;
+
+				swap();
+			}
+		}
+
+		// The back half is owned by whoever holds the pool lock while it's pending
+		if (backFill > 0) {
+			back.limit(backFill).position(0);
+			pool.injectEntropy(back, 0);
+			back.clear();
+
+			Arrays.fill(back.array(), 0, backFill, (byte)0);
+		}
+
+		pool.creditEntropy(backEntropyBits);
+
+		synchronized (stagingLock) {
+			foldedSequence = backSequence;
+			backPending = false;
+			stagingLock.notifyAll();
+		}
+
+		return true;
+	}
+
+	/** Must hold the pool lock, and must have mixed the pool after the last drain. */
+	private void markMixed() {
+		synchronized (stagingLock) {
+			mixedSequence = Math.max(mixedSequence, foldedSequence);
+			stagingLock.notifyAll();
+		}
+	}
+}
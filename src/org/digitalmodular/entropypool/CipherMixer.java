@@ -0,0 +1,106 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.logging.Level;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.digitalmodular.utilities.LogTimer;
+
+/**
+ * Whitens the pool by encrypting it in-place with the pool's {@link Cipher}, keyed from the pool's
+ * {@link SecureRandom}. The key is at least 256 bits, and equal to the block size for wide-block ciphers like
+ * Threefish. The pool is processed in chunks of 64kiB, and any authentication tag produced by the final block is
+ * discarded.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-13
+public class CipherMixer implements EntropyPoolMixer {
+	private static final int MIN_KEY_LENGTH = 32;
+	private static final int CHUNK_LENGTH   = 64 * 1024;
+
+	private byte[] key;
+	private byte[] iv;
+	private byte[] scratch;
+
+	@Override
+	public void mix(EntropyPool2 pool) {
+		LogTimer.start();
+
+		SecureRandom random = pool.getSecureRandom();
+		Cipher       cipher = pool.getCipher();
+		ByteBuffer   buffer = pool.storage().buffer().duplicate();
+
+		int blockSize = Math.max(1, cipher.getBlockSize());
+		if (key == null || key.length != Math.max(MIN_KEY_LENGTH, blockSize)) {
+			key = new byte[Math.max(MIN_KEY_LENGTH, blockSize)];
+			iv = new byte[blockSize];
+		}
+
+		random.nextBytes(key);
+		random.nextBytes(iv);
+
+		try {
+			String keyAlgorithm = cipher.getAlgorithm().split("/")[0];
+			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, keyAlgorithm), new IvParameterSpec(iv), random);
+
+			int scratchLength = cipher.getOutputSize(CHUNK_LENGTH);
+			if (scratch == null || scratch.length < scratchLength)
+				scratch = new byte[scratchLength];
+
+			ByteBuffer input  = buffer.duplicate();
+			ByteBuffer output = ByteBuffer.wrap(scratch);
+
+			// Ciphertext never runs ahead of plaintext, so it can be copied back behind the read position.
+			buffer.clear();
+			for (int offset = 0; offset < buffer.capacity(); offset += CHUNK_LENGTH) {
+				int length = Math.min(CHUNK_LENGTH, buffer.capacity() - offset);
+
+				input.limit(offset + length);
+				input.position(offset);
+				output.clear();
+				int outputLength = cipher.update(input, output);
+
+				buffer.put(scratch, 0, outputLength);
+			}
+
+			cipher.doFinal(scratch, 0);
+			buffer.put(scratch, 0, buffer.remaining());
+		} catch (GeneralSecurityException ex) {
+			throw new IllegalStateException("Cipher cannot be used for mixing: " + cipher.getAlgorithm(), ex);
+		} finally {
+			Arrays.fill(key, (byte)0);
+			Arrays.fill(iv, (byte)0);
+			if (scratch != null)
+				Arrays.fill(scratch, (byte)0);
+		}
+
+		LogTimer.finishAndLog(Level.FINER, "Enciphered the Entropy Pool in {0} seconds");
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The collision estimate of NIST SP 800-90B (section 6.3.2), over the bits of the data (most significant bit first).
+ * <p>
+ * For binary data a collision happens after either 2 or 3 bits, and the expected collision time for a bit with
+ * probability {@code p} is {@code 2 + 2p(1-p)}. This is solved for {@code p} using the lower 99% confidence bound of
+ * the mean collision time.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-18
+public class CollisionEstimator implements EntropyEstimator {
+	/** No bits of the current candidate seen yet */
+	private static final int STATE_EMPTY = 0;
+	/** One bit seen, which was 0 or 1 respectively */
+	private static final int STATE_ZERO  = 1;
+	private static final int STATE_ONE   = 2;
+	/** Two different bits seen, so the next bit always collides */
+	private static final int STATE_TWO   = 3;
+
+	/**
+	 * For every state and byte value: the state after the byte in bits 0-1, the number of collisions after 2 bits in
+	 * bits 2-5, and the number of collisions after 3 bits in bits 6-9. This processes a whole byte per lookup.
+	 */
+	private static final short[] TRANSITIONS = new short[4 * 256];
+
+	static {
+		for (int initialState = 0; initialState < 4; initialState++) {
+			for (int value = 0; value < 256; value++) {
+				int state       = initialState;
+				int numTwoBits  = 0;
+				int numThreeBits = 0;
+
+				for (int shift = 7; shift >= 0; shift--) {
+					int bit = (value >>> shift) & 1;
+
+					if (state == STATE_EMPTY) {
+						state = bit == 0 ? STATE_ZERO : STATE_ONE;
+					} else if (state == STATE_TWO) {
+						numThreeBits++;
+						state = STATE_EMPTY;
+					} else if (bit == (state == STATE_ONE ? 1 : 0)) {
+						numTwoBits++;
+						state = STATE_EMPTY;
+					} else {
+						state = STATE_TWO;
+					}
+				}
+
+				TRANSITIONS[initialState * 256 + value] = (short)(state | numTwoBits << 2 | numThreeBits << 6);
+			}
+		}
+	}
+
+	private int state;
+
+	private long numTwoBitCollisions;
+	private long numThreeBitCollisions;
+	private long numBytes;
+
+	@Override
+	public void reset() {
+		state = STATE_EMPTY;
+		numTwoBitCollisions = 0;
+		numThreeBitCollisions = 0;
+		numBytes = 0;
+	}
+
+	@Override
+	public void update(ByteBuffer bytes, int index, int length) {
+		for (int i = index; i < index + length; i++) {
+			int transition = TRANSITIONS[state * 256 + (bytes.get(i) & 0xFF)];
+
+			state = transition & 3;
+			numTwoBitCollisions += (transition >>> 2) & 15;
+			numThreeBitCollisions += transition >>> 6;
+		}
+
+		numBytes += length;
+	}
+
+	@Override
+	public long getNumBytes() { return numBytes; }
+
+	@Override
+	public double getEntropyPerByte() {
+		long numCollisions = numTwoBitCollisions + numThreeBitCollisions;
+		if (numCollisions < 2)
+			return 0;
+
+		long sumTimes        = numTwoBitCollisions * 2 + numThreeBitCollisions * 3;
+		long sumSquaredTimes = numTwoBitCollisions * 4 + numThreeBitCollisions * 9;
+
+		double mean     = (double)sumTimes / numCollisions;
+		double variance = (sumSquaredTimes - numCollisions * mean * mean) / (numCollisions - 1);
+		double lower    = mean - 2.576 * Math.sqrt(Math.max(0, variance) / numCollisions);
+
+		// Solve 2 + 2p(1-p) = lower for p in [0.5, 1]
+		double pq = Math.max(0, Math.min(0.25, (lower - 2) / 2));
+		double p  = (1 + Math.sqrt(1 - 4 * pq)) / 2;
+
+		return Math.max(0, -8 * Math.log(p) / Math.log(2));
+	}
+}
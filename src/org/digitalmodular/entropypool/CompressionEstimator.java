@@ -0,0 +1,146 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The compression estimate of NIST SP 800-90B (section 6.3.4), over byte values: Maurer's universal statistic, the
+ * mean log2 distance between repeated values, after a dictionary of {@value #DICTIONARY_LENGTH} bytes.
+ * <p>
+ * The expected statistic is computed with the limit of {@code G(z)} for long inputs, which is
+ * {@code z E[log2(U)]} for geometrically distributed {@code U}. This is solved for the probability of the most likely
+ * value using the lower 99% confidence bound of the statistic.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-18
+public class CompressionEstimator implements EntropyEstimator {
+	private static final int DICTIONARY_LENGTH = 1000;
+	private static final int BITS_PER_SAMPLE   = 8;
+	private static final int NUM_VALUES        = 1 << BITS_PER_SAMPLE;
+
+	private static final double LN_2       = Math.log(2);
+	private static final double EULER_LOG2 = 0.5772156649015329 / LN_2;
+
+	/** log2 of small distances, so the per-byte cost is a table lookup */
+	private static final float[] LOG2_TABLE = new float[65536];
+
+	static {
+		for (int i = 1; i < LOG2_TABLE.length; i++)
+			LOG2_TABLE[i] = (float)(Math.log(i) / LN_2);
+	}
+
+	private final long[] lastSeen = new long[NUM_VALUES];
+
+	private long   numBytes;
+	private long   numTested;
+	private double sumLog2;
+	private double sumSquaredLog2;
+
+	@Override
+	public void reset() {
+		Arrays.fill(lastSeen, 0);
+		numBytes = 0;
+		numTested = 0;
+		sumLog2 = 0;
+		sumSquaredLog2 = 0;
+	}
+
+	@Override
+	public void update(ByteBuffer bytes, int index, int length) {
+		for (int i = index; i < index + length; i++) {
+			int  value    = bytes.get(i) & 0xFF;
+			long position = ++numBytes;
+
+			if (position > DICTIONARY_LENGTH) {
+				long   distance = lastSeen[value] == 0 ? position : position - lastSeen[value];
+				double log2     = distance < LOG2_TABLE.length ? LOG2_TABLE[(int)distance] : Math.log(distance) / LN_2;
+
+				numTested++;
+				sumLog2 += log2;
+				sumSquaredLog2 += log2 * log2;
+			}
+
+			lastSeen[value] = position;
+		}
+	}
+
+	@Override
+	public long getNumBytes() { return numBytes; }
+
+	@Override
+	public double getEntropyPerByte() {
+		if (numTested < 2)
+			return 0;
+
+		double mean     = sumLog2 / numTested;
+		double variance = (sumSquaredLog2 - numTested * mean * mean) / (numTested - 1);
+		double c = 0.7 - 0.8 / BITS_PER_SAMPLE +
+		           (4 + 32.0 / BITS_PER_SAMPLE) * Math.pow(numTested, -3.0 / BITS_PER_SAMPLE) / 15;
+		double lower = mean - 2.576 * c * Math.sqrt(Math.max(0, variance) / numTested);
+
+		double minP = 1.0 / NUM_VALUES;
+		if (lower >= expectedStatistic(minP))
+			return BITS_PER_SAMPLE;
+
+		// The expected statistic decreases from its maximum at p = 1/256 to 0 at p = 1
+		double low  = minP;
+		double high = 1;
+		for (int i = 0; i < 50; i++) {
+			double p = (low + high) / 2;
+			if (expectedStatistic(p) > lower)
+				low = p;
+			else
+				high = p;
+		}
+
+		return Math.max(0, -Math.log(high) / LN_2);
+	}
+
+	private static double expectedStatistic(double p) {
+		double q = (1 - p) / (NUM_VALUES - 1);
+		return p * expectedLog2Distance(p) + (NUM_VALUES - 1) * q * expectedLog2Distance(q);
+	}
+
+	/**
+	 * Returns E[log2(U)] for U geometrically distributed with success probability {@code z}.
+	 */
+	private static double expectedLog2Distance(double z) {
+		if (z <= 0 || z >= 1)
+			return 0;
+
+		// Asymptotic expansion for small z, accurate to well below the confidence interval
+		if (z < 1.0 / 1024)
+			return -Math.log(z) / LN_2 - EULER_LOG2;
+
+		double sum         = 0;
+		double probability = z;
+		for (int u = 2; probability > 1e-12 * z; u++) {
+			probability *= 1 - z;
+			sum += probability * (u < LOG2_TABLE.length ? LOG2_TABLE[u] : Math.log(u) / LN_2);
+		}
+
+		return sum;
+	}
+}
@@ -0,0 +1,245 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import static java.util.Objects.requireNonNull;
+
+import static org.digitalmodular.utilities.ArrayUtilities.xor;
+import static org.digitalmodular.utilities.Verifier.requireThat;
+
+/**
+ * Thread-safe front for an {@link EntropyPool2}.
+ * <p>
+ * Injecting threads XOR their data into one of several staging stripes, chosen by thread ID, so producers on
+ * different stripes never contend. A stripe is as long as the pool, but at most 64kiB. The stripes are folded into the
+ * pool under the pool lock before every mix, extraction or save, and whenever a stripe fills up. Entropy is only
+ * credited to the pool once the data carrying it has been folded in.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-14
+public class ConcurrentEntropyPool implements EntropyPool {
+	/** Caps the memory of the stripes for large pools; a full stripe is folded in sooner instead */
+	private static final int MAX_STRIPE_LENGTH = 64 * 1024;
+
+	private final EntropyPool2 pool;
+	private final Stripe[]     stripes;
+	private final PoolSnapshot snapshot = new PoolSnapshot();
+
+	public ConcurrentEntropyPool(EntropyPool2 pool) {
+		this(pool, Runtime.getRuntime().availableProcessors());
+	}
+
+	public ConcurrentEntropyPool(EntropyPool2 pool, int numStripes) {
+		requireNonNull(pool, "pool == null");
+		requireThat(numStripes > 0, "numStripes <= 0: " + numStripes);
+
+		this.pool = pool;
+
+		stripes = new Stripe[numStripes];
+		for (int i = 0; i < numStripes; i++)
+			stripes[i] = new Stripe(Math.min(pool.storage().length(), MAX_STRIPE_LENGTH));
+	}
+
+	@Override
+	public void injectEntropy(byte[] bytes, int entropyBits) {
+		requireThat(bytes.length > 0, "bytes.length == 0");
+
+		injectEntropy(ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder()), entropyBits);
+	}
+
+	@Override
+	public void injectEntropy(ByteBuffer source, int entropyBits) {
+		requireThat(source.hasRemaining(), "source.remaining() == 0");
+		requireThat(entropyBits >= 0 && entropyBits <= source.remaining() * 8L,
+		            "entropyBits out of range [0, " + source.remaining() * 8L + "]: " + entropyBits);
+
+		Stripe stripe = stripes[(int)(Thread.currentThread().getId() % stripes.length)];
+
+		while (source.hasRemaining()) {
+			boolean full;
+			synchronized (stripe) {
+				stripe.stage(source);
+				full = stripe.isFull();
+			}
+
+			// Never fold while holding a stripe lock; fold() takes the pool lock first.
+			if (full)
+				fold();
+		}
+
+		synchronized (stripe) {
+			stripe.pendingEntropyBits += entropyBits;
+		}
+	}
+
+	@Override
+	public byte[] extractEntropy(int numBytes) {
+		synchronized (pool) {
+			fold();
+			return pool.extractEntropy(numBytes);
+		}
+	}
+
+	@Override
+	public void extractEntropy(byte[] bytes, int offset, int length) {
+		synchronized (pool) {
+			fold();
+			pool.extractEntropy(bytes, offset, length);
+		}
+	}
+
+	@Override
+	public void extractEntropy(ByteBuffer target) {
+		synchronized (pool) {
+			fold();
+			pool.extractEntropy(target);
+		}
+	}
+
+	@Override
+	public long getInjectedEntropy() {
+		synchronized (pool) {
+			return pool.getInjectedEntropy();
+		}
+	}
+
+	@Override
+	public long getExtractedEntropy() {
+		synchronized (pool) {
+			return pool.getExtractedEntropy();
+		}
+	}
+
+	@Override
+	public long getAvailableEntropy() {
+		synchronized (pool) {
+			return pool.getAvailableEntropy();
+		}
+	}
+
+	@Override
+	public void mix() {
+		synchronized (pool) {
+			fold();
+			pool.mix();
+		}
+	}
+
+	@Override
+	public void beginBatch() {
+		synchronized (pool) {
+			pool.beginBatch();
+		}
+	}
+
+	@Override
+	public void commitBatch() {
+		synchronized (pool) {
+			fold();
+			pool.commitBatch();
+		}
+	}
+
+	/**
+	 * Captures a snapshot and writes it without holding up the pool.
+	 */
+	public void saveToFile(File poolFile, File bakFile, File tempFile) throws IOException {
+		synchronized (snapshot) {
+			synchronized (pool) {
+				fold();
+				snapshot.capture(pool);
+			}
+
+			try {
+				snapshot.saveToFile(poolFile, bakFile, tempFile);
+			} finally {
+				snapshot.clear();
+			}
+		}
+	}
+
+	/**
+	 * Folds all staging stripes into the pool. Lock order is always the pool first, then a stripe.
+	 */
+	public void fold() {
+		synchronized (pool) {
+			for (Stripe stripe : stripes) {
+				synchronized (stripe) {
+					stripe.foldInto(pool);
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized (pool) {
+			return getClass().getSimpleName() + '[' + pool + ", stripes=" + stripes.length + ']';
+		}
+	}
+
+	private static final class Stripe {
+		private final byte[]     staging;
+		private final ByteBuffer stagingView;
+
+		private int  fill;
+		private long pendingEntropyBits;
+
+		Stripe(int length) {
+			staging = new byte[length];
+			stagingView = ByteBuffer.wrap(staging).order(ByteOrder.nativeOrder());
+		}
+
+		void stage(ByteBuffer source) {
+			int count = Math.min(source.remaining(), staging.length - fill);
+			xor(stagingView, fill, source, source.position(), count);
+			source.position(source.position() + count);
+			fill += count;
+		}
+
+		boolean isFull() {
+			return fill == staging.length;
+		}
+
+		void foldInto(EntropyPool2 pool) {
+			if (fill > 0) {
+				stagingView.limit(fill).position(0);
+				pool.injectEntropy(stagingView, 0);
+				stagingView.clear();
+
+				Arrays.fill(staging, 0, fill, (byte)0);
+				fill = 0;
+			}
+
+			if (pendingEntropyBits > 0) {
+				pool.creditEntropy(pendingEntropyBits);
+				pendingEntropyBits = 0;
+			}
+		}
+	}
+}
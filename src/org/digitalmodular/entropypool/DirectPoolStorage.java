@@ -0,0 +1,69 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.digitalmodular.utilities.Verifier.requireThat;
+
+/**
+ * Pool storage in native memory outside the heap. The garbage collector never copies the pool bytes around, they
+ * don't show up in heap dumps, and channel I/O on them needs no intermediate copy.
+ * <p>
+ * The memory is not locked, so it can still be swapped out. Locking needs a native call that Java can't make without
+ * a JNI library. {@link #close()} should be called when the pool is discarded, because the memory is only released
+ * (without zeroing) once the buffer is garbage collected.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-22
+public class DirectPoolStorage implements PoolStorage {
+	private static final int ZERO_CHUNK_LENGTH = 8192;
+
+	private final ByteBuffer buffer;
+
+	public DirectPoolStorage(int length) {
+		requireThat(length > 0, "length <= 0: " + length);
+
+		buffer = ByteBuffer.allocateDirect(length).order(ByteOrder.nativeOrder());
+	}
+
+	@Override
+	public int length() { return buffer.capacity(); }
+
+	@Override
+	public ByteBuffer buffer() { return buffer; }
+
+	@Override
+	public void close() {
+		byte[]     zeroes = new byte[Math.min(ZERO_CHUNK_LENGTH, buffer.capacity())];
+		ByteBuffer target = buffer.duplicate();
+		target.clear();
+
+		while (target.hasRemaining())
+			target.put(zeroes, 0, Math.min(zeroes.length, target.remaining()));
+	}
+
+	@Override
+	public String toString() { return getClass().getSimpleName() + "[length=" + buffer.capacity() + ']'; }
+}
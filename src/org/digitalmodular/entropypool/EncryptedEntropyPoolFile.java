@@ -0,0 +1,344 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+import java.util.logging.Level;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import static java.util.Objects.requireNonNull;
+
+import org.digitalmodular.utilities.LogTimer;
+import org.digitalmodular.utilities.container.Version;
+import org.digitalmodular.utilities.io.InvalidHeaderException;
+import static org.digitalmodular.entropypool.EntropyPool.CURRENT_VERSION;
+import static org.digitalmodular.entropypool.EntropyPool.MAGIC;
+import static org.digitalmodular.utilities.Verifier.requireThat;
+
+/**
+ * Saves and loads pool files that are encrypted at rest, so they don't have to be stored on an encrypted file system.
+ * <p>
+ * After a plaintext header, the metadata and the pool bytes are encrypted as a sequence of AES-GCM segments of at most
+ * {@link #DEFAULT_CHUNK_LENGTH} bytes each. The nonce of a segment holds its index and a flag marking the last
+ * segment, and the header is authenticated with every segment, so segments can't be reordered, truncated or moved to
+ * another file. Saving streams one segment at a time through the file channel. Loading reads the segments with
+ * positional reads and decrypts and verifies them on several threads, directly into the pool storage.
+ * <p>
+ * Every file is encrypted with a fresh key derived from a {@link PoolFileKey} and a random salt.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-25
+public enum EncryptedEntropyPoolFile {
+	;
+
+	public static final int DEFAULT_CHUNK_LENGTH = 64 * 1024;
+
+	/** The revision tracks the layout of the metadata section. */
+	static final Version FORMAT_VERSION = new Version(4, 0, Version.Release.ALPHA, CURRENT_VERSION.getRevision());
+
+	private static final String CIPHER_ALGORITHM = "AES/GCM/NoPadding";
+	private static final int    TAG_LENGTH       = 16;
+	private static final int    NONCE_LENGTH     = 12;
+	private static final int    PREFIX_LENGTH    = 7;
+	private static final int    HEADER_LENGTH    = 128;
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	public static void saveToFile(EntropyPool2 pool, File poolFile, File bakFile, File tempFile, PoolFileKey key)
+			throws IOException {
+		requireNonNull(pool, "pool == null");
+		requireNonNull(poolFile, "poolFile == null");
+		requireNonNull(bakFile, "bakFile == null");
+		requireNonNull(tempFile, "tempFile == null");
+		requireNonNull(key, "key == null");
+		requireThat(!tempFile.exists() || tempFile.isFile(), "tempFile.isFile() == false: " + tempFile);
+
+		LogTimer.start(Level.INFO, "Saving encrypted Entropy Pool file " + tempFile);
+
+		try {
+			writeTo(pool, tempFile, key, DEFAULT_CHUNK_LENGTH);
+		} catch (GeneralSecurityException ex) {
+			throw new IOException("Could not encrypt the Entropy Pool", ex);
+		}
+
+		EntropyPool2.replacePoolFile(poolFile, bakFile, tempFile);
+
+		LogTimer.finishAndLog(Level.FINE, "Saved the encrypted Entropy Pool in {0} seconds");
+	}
+
+	public static EntropyPool2 loadFromFile(File poolFile, PoolFileKey key) throws IOException {
+		return loadFromFile(poolFile, key, HeapPoolStorage::new);
+	}
+
+	/**
+	 * Loads the pool into storage created by {@code storageFactory}, which gets the pool size in bytes.
+	 *
+	 * @throws IOException when the key is wrong or the file was modified
+	 */
+	public static EntropyPool2 loadFromFile(File poolFile, PoolFileKey key, IntFunction<PoolStorage> storageFactory)
+			throws IOException {
+		requireNonNull(poolFile, "poolFile == null");
+		requireNonNull(key, "key == null");
+		requireNonNull(storageFactory, "storageFactory == null");
+		requireThat(poolFile.isFile(), "poolFile.isFile() == false: " + poolFile);
+		requireThat(poolFile.canRead(), "poolFile.canRead() == false: " + poolFile);
+
+		LogTimer.start(Level.INFO, "Loading encrypted Entropy Pool file " + poolFile);
+
+		try {
+			EntropyPool2 pool = readFrom(poolFile, key, storageFactory);
+
+			LogTimer.finishAndLog(Level.FINE, "Loaded the encrypted Entropy Pool in {0} seconds");
+			return pool;
+		} catch (GeneralSecurityException ex) {
+			throw new IOException("Could not decrypt the Entropy Pool: " + poolFile, ex);
+		}
+	}
+
+	private static void writeTo(EntropyPool2 pool, File file, PoolFileKey key, int chunkLength)
+			throws IOException, GeneralSecurityException {
+		ByteArrayOutputStream metadataBytes = new ByteArrayOutputStream(256);
+		try (DataOutputStream out = new DataOutputStream(metadataBytes)) {
+			EntropyPool2Saver.writeMetadata(pool, out);
+			out.writeInt(pool.storage().length());
+		}
+
+		byte[] kdfSalt  = key.getKdfSalt(RANDOM);
+		byte[] fileSalt = new byte[PoolFileKey.SALT_LENGTH];
+		byte[] prefix   = new byte[PREFIX_LENGTH];
+		RANDOM.nextBytes(fileSalt);
+		RANDOM.nextBytes(prefix);
+
+		int    bodyLength = pool.storage().length();
+		byte[] header     = writeHeader(key, kdfSalt, fileSalt, prefix, chunkLength, metadataBytes.size(), bodyLength);
+
+		byte[]        fileKey = key.deriveFileKey(kdfSalt, key.getIterations(), fileSalt);
+		SecretKeySpec aesKey  = new SecretKeySpec(fileKey, "AES");
+		Arrays.fill(fileKey, (byte)0);
+
+		Cipher     cipher    = Cipher.getInstance(CIPHER_ALGORITHM);
+		ByteBuffer encrypted = ByteBuffer.allocate(Math.max(chunkLength, metadataBytes.size()) + TAG_LENGTH);
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+		                                            StandardOpenOption.CREATE,
+		                                            StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeFully(channel, ByteBuffer.wrap(header));
+
+			initCipher(cipher, Cipher.ENCRYPT_MODE, aesKey, prefix, 0, false, header);
+			encrypted.clear();
+			cipher.doFinal(ByteBuffer.wrap(metadataBytes.toByteArray()), encrypted);
+			encrypted.flip();
+			writeFully(channel, encrypted);
+
+			int        numChunks = getNumChunks(bodyLength, chunkLength);
+			ByteBuffer body      = pool.storage().buffer().duplicate();
+			for (int chunk = 0; chunk < numChunks; chunk++) {
+				int offset = chunk * chunkLength;
+				body.limit(Math.min(offset + chunkLength, bodyLength)).position(offset);
+
+				initCipher(cipher, Cipher.ENCRYPT_MODE, aesKey, prefix, chunk + 1, chunk == numChunks - 1, header);
+				encrypted.clear();
+				cipher.doFinal(body, encrypted);
+				encrypted.flip();
+				writeFully(channel, encrypted);
+			}
+
+			channel.force(false);
+		}
+	}
+
+	private static EntropyPool2 readFrom(File file, PoolFileKey key, IntFunction<PoolStorage> storageFactory)
+			throws IOException, GeneralSecurityException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			byte[] header = new byte[HEADER_LENGTH];
+			readFully(channel, ByteBuffer.wrap(header), 0);
+
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(header));
+			Version         version;
+			try {
+				version = EntropyPoolLoader.readHeader(in);
+			} catch (InvalidHeaderException ignored) {
+				throw new InvalidHeaderException("File is not an EntropyPool file: " + file);
+			}
+			if (version.getMajor() != FORMAT_VERSION.getMajor())
+				throw new InvalidHeaderException("File is not an encrypted EntropyPool file: " + file);
+
+			byte type = in.readByte();
+			if (type != key.getType())
+				throw new IOException("File is encrypted with a " +
+				                      (type == PoolFileKey.TYPE_KEY_FILE ? "key file" : "passphrase") + ": " + file);
+
+			int    iterations = in.readInt();
+			byte[] kdfSalt    = new byte[PoolFileKey.SALT_LENGTH];
+			byte[] fileSalt   = new byte[PoolFileKey.SALT_LENGTH];
+			byte[] prefix     = new byte[PREFIX_LENGTH];
+			in.readFully(kdfSalt);
+			in.readFully(fileSalt);
+			in.readFully(prefix);
+			int chunkLength    = in.readInt();
+			int metadataLength = in.readInt();
+			int bodyLength     = in.readInt();
+
+			// The header isn't authenticated until the first segment is, so check it before deriving or allocating
+			if (type == PoolFileKey.TYPE_PASSPHRASE && (iterations <= 0 || iterations > PoolFileKey.MAX_ITERATIONS))
+				throw new IOException("Invalid PBKDF2 iteration count " + iterations + ": " + file);
+			if (chunkLength <= 0 || metadataLength <= 0 || metadataLength > chunkLength || bodyLength <= 0)
+				throw new IOException("Invalid section lengths: " + file);
+			int  numChunks    = getNumChunks(bodyLength, chunkLength);
+			long bodyPosition = HEADER_LENGTH + metadataLength + TAG_LENGTH;
+			if (channel.size() != bodyPosition + bodyLength + (long)numChunks * TAG_LENGTH)
+				throw new IOException("File has the wrong size: " + file);
+
+			byte[]        fileKey = key.deriveFileKey(kdfSalt, iterations, fileSalt);
+			SecretKeySpec aesKey  = new SecretKeySpec(fileKey, "AES");
+			Arrays.fill(fileKey, (byte)0);
+
+			ByteBuffer encrypted = ByteBuffer.allocate(metadataLength + TAG_LENGTH);
+			readFully(channel, encrypted, HEADER_LENGTH);
+			encrypted.flip();
+
+			Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+			initCipher(cipher, Cipher.DECRYPT_MODE, aesKey, prefix, 0, false, header);
+			byte[] metadata;
+			try {
+				metadata = cipher.doFinal(encrypted.array());
+			} catch (AEADBadTagException ex) {
+				throw new IOException("Wrong key, or the file was modified: " + file, ex);
+			}
+
+			PoolStorage storage = storageFactory.apply(bodyLength);
+			try {
+				// Each worker has its own cipher and read buffer
+				ParallelChunks.run(numChunks, "EntropyPool decryptor", (firstChunk, stride) ->
+						decryptChunks(channel, storage, aesKey, prefix, header, bodyPosition, chunkLength, numChunks,
+						              firstChunk, stride));
+
+				try (DataInputStream metadataIn = new DataInputStream(new ByteArrayInputStream(metadata))) {
+					EntropyPool2 pool = EntropyPool2Loader.readFromWithStorage(metadataIn, version, length -> {
+						if (length != bodyLength)
+							throw new IOException("Pool length mismatch: " + length + " != " + bodyLength);
+
+						return storage;
+					});
+
+					if (metadataIn.available() > 0)
+						throw new IOException(metadataIn.available() + " extraneous metadata byte(s): " + file);
+
+					return pool;
+				}
+			} catch (IOException | RuntimeException ex) {
+				storage.close();
+				throw ex;
+			} finally {
+				Arrays.fill(metadata, (byte)0);
+			}
+		}
+	}
+
+	private static void decryptChunks(FileChannel channel, PoolStorage storage, SecretKeySpec aesKey, byte[] prefix,
+	                                  byte[] header, long bodyPosition, int chunkLength, int numChunks,
+	                                  int firstChunk, int stride) throws IOException, GeneralSecurityException {
+		int        bodyLength = storage.length();
+		Cipher     cipher     = Cipher.getInstance(CIPHER_ALGORITHM);
+		ByteBuffer encrypted  = ByteBuffer.allocate(chunkLength + TAG_LENGTH);
+		ByteBuffer body       = storage.buffer().duplicate();
+
+		for (int chunk = firstChunk; chunk < numChunks; chunk += stride) {
+			int offset = chunk * chunkLength;
+			int length = Math.min(chunkLength, bodyLength - offset);
+
+			encrypted.clear().limit(length + TAG_LENGTH);
+			readFully(channel, encrypted, bodyPosition + offset + (long)chunk * TAG_LENGTH);
+			encrypted.flip();
+
+			body.limit(offset + length).position(offset);
+			initCipher(cipher, Cipher.DECRYPT_MODE, aesKey, prefix, chunk + 1, chunk == numChunks - 1, header);
+			try {
+				cipher.doFinal(encrypted, body);
+			} catch (AEADBadTagException ex) {
+				throw new IOException("Chunk " + chunk + " of the pool failed authentication", ex);
+			}
+		}
+	}
+
+	private static byte[] writeHeader(PoolFileKey key, byte[] kdfSalt, byte[] fileSalt, byte[] prefix,
+	                                  int chunkLength, int metadataLength, int bodyLength) throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream(HEADER_LENGTH);
+		try (DataOutputStream out = new DataOutputStream(header)) {
+			out.writeBytes(MAGIC);
+			out.writeUTF("");
+			FORMAT_VERSION.writeTo(out);
+
+			out.writeByte(key.getType());
+			out.writeInt(key.getIterations());
+			out.write(kdfSalt);
+			out.write(fileSalt);
+			out.write(prefix);
+			out.writeInt(chunkLength);
+			out.writeInt(metadataLength);
+			out.writeInt(bodyLength);
+		}
+
+		return Arrays.copyOf(header.toByteArray(), HEADER_LENGTH);
+	}
+
+	/**
+	 * The nonce is the file's random prefix, the segment index, and whether it's the last segment.
+	 */
+	private static void initCipher(Cipher cipher, int mode, SecretKeySpec aesKey, byte[] prefix, int segment,
+	                               boolean last, byte[] header) throws GeneralSecurityException {
+		byte[] nonce = ByteBuffer.allocate(NONCE_LENGTH)
+		                         .put(prefix)
+		                         .putInt(segment)
+		                         .put((byte)(last ? 1 : 0))
+		                         .array();
+
+		cipher.init(mode, aesKey, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+		cipher.updateAAD(header);
+	}
+
+	private static int getNumChunks(int bodyLength, int chunkLength) {
+		return (int)((bodyLength + (long)chunkLength - 1) / chunkLength);
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException();
+		}
+	}
+}
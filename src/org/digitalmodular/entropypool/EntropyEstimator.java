@@ -0,0 +1,56 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Estimates the min-entropy of data as it streams past, so injected data can be credited with what it actually
+ * contains instead of a fixed rate. Implementations must not allocate while updating.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-18
+public interface EntropyEstimator {
+	void reset();
+
+	/**
+	 * Adds {@code length} bytes of {@code bytes}, starting at the absolute index {@code index}, to the estimate. The
+	 * position of {@code bytes} is not changed.
+	 */
+	void update(ByteBuffer bytes, int index, int length);
+
+	default void update(ByteBuffer bytes) {
+		update(bytes, bytes.position(), bytes.remaining());
+	}
+
+	long getNumBytes();
+
+	/**
+	 * @return the estimated min-entropy in bits per byte, in the range [0, 8]
+	 */
+	double getEntropyPerByte();
+
+	default long getEntropyBits() {
+		return (long)(getEntropyPerByte() * getNumBytes());
+	}
+}
@@ -19,6 +19,7 @@
 
 package org.digitalmodular.entropypool;
 
+import java.nio.ByteBuffer;
 import java.time.LocalDate;
 
 import org.digitalmodular.utilities.container.Version;
@@ -30,7 +31,7 @@ import org.digitalmodular.utilities.container.Version;
  */
 // Created 2016-07-29
 public interface EntropyPool {
-	Version CURRENT_VERSION = new Version(2, 0, Version.Release.ALPHA, 21);
+	Version CURRENT_VERSION = new Version(2, 0, Version.Release.ALPHA, 22);
 
 	String PROGRAM_TITLE = String.format("EntropyPool v%s © %d DigitalModular",
 	                                     CURRENT_VERSION.toShortString(), LocalDate.now().getYear());
@@ -39,14 +40,43 @@ public interface EntropyPool {
 
 	void injectEntropy(byte[] bytes, int entropyBits);
 
+	/**
+	 * Injects the remaining bytes of {@code source} and advances its position. Direct and memory-mapped buffers are
+	 * read without an intermediate copy.
+	 */
+	void injectEntropy(ByteBuffer source, int entropyBits);
+
 	byte[] extractEntropy(int numBytes);
 
+	/**
+	 * Extracts {@code length} bytes into {@code bytes}, starting at {@code offset}.
+	 */
+	void extractEntropy(byte[] bytes, int offset, int length);
+
+	/**
+	 * Extracts {@code target.remaining()} bytes into {@code target} and advances its position. Direct buffers are
+	 * written without an intermediate copy.
+	 */
+	void extractEntropy(ByteBuffer target);
+
 	long getInjectedEntropy();
 
 	long getExtractedEntropy();
 
 	void mix();
 
+	/**
+	 * Starts a batch. Until the matching {@link #commitBatch()}, calls to {@link #mix()} are collapsed into a single
+	 * mix at commit. Mixing that is needed for security, like when injection wraps around the pool or during
+	 * extraction, still happens. Batches can be nested; only the outermost commit mixes.
+	 */
+	void beginBatch();
+
+	/**
+	 * Ends a batch started with {@link #beginBatch()}. The outermost commit always mixes the pool at least once.
+	 */
+	void commitBatch();
+
 	default long getAvailableEntropy() {
 		return getInjectedEntropy() - getExtractedEntropy();
 	}
@@ -20,11 +20,14 @@
 package org.digitalmodular.entropypool;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.function.IntFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import static java.util.Objects.requireNonNull;
@@ -37,6 +40,8 @@ import org.digitalmodular.utilities.container.LoggingCount;
 import org.digitalmodular.utilities.container.LoggingReference;
 import org.digitalmodular.utilities.container.Version;
 import org.digitalmodular.utilities.io.InvalidHeaderException;
+import static org.digitalmodular.utilities.ArrayUtilities.xor;
+import static org.digitalmodular.utilities.Verifier.requireState;
 import static org.digitalmodular.utilities.Verifier.requireThat;
 
 /**
@@ -53,6 +58,10 @@ public class EntropyPool2 implements EntropyPool {
 	public static final String DEFAULT_MESSAGEDIGEST_STRING = "Keccak-512";
 	public static final String DEFAULT_CIPHER_STRING        = "Threefish-1024/EAX/NoPadding";
 
+	public static final int DEFAULT_REHASH_STRIPES = 1;
+
+	private static final int RECOVERY_SEED_LENGTH = 64;
+
 	private final long         createDate;
 	private final LoggingCount accessCount;
 
@@ -64,20 +73,42 @@ public class EntropyPool2 implements EntropyPool {
 	private final LoggingReference<Long> extractedEntropy;
 	private final LoggingCount           mixCount;
 
-	private int hashX;
-	private int hashY;
+	private final int[] hashX;
+	private final int[] hashY;
 
-	private final byte[] buffer;
+	private final PoolStorage storage;
 
 	private transient int writePointer;
 
+	private transient int  batchDepth;
+	private transient long coalescedMixCount;
+
 	private final EntropyPoolMixer mixer = new MultipleMixer(
 			new WhitenMixer(),
 			new PermuteMixer(),
 			new RehashMixer());
 
 	public EntropyPool2(int size) throws NoSuchAlgorithmException, NoSuchPaddingException {
-		requireThat(size > 0, "size <= 0: " + size);
+		this(size, DEFAULT_REHASH_STRIPES);
+	}
+
+	/**
+	 * @param rehashStripes the number of independent stripes the pool is divided in during rehashing. Stripes are
+	 *                      rehashed in parallel, so for large pools this can be set to the number of cores.
+	 */
+	public EntropyPool2(int size, int rehashStripes) throws NoSuchAlgorithmException, NoSuchPaddingException {
+		this(new HeapPoolStorage(size), rehashStripes);
+	}
+
+	/**
+	 * Creates a pool in the specified storage, which should be freshly allocated. The pool takes ownership of it.
+	 */
+	public EntropyPool2(PoolStorage storage, int rehashStripes)
+			throws NoSuchAlgorithmException, NoSuchPaddingException {
+		requireNonNull(storage, "storage == null");
+		requireThat(rehashStripes > 0, "rehashStripes <= 0: " + rehashStripes);
+
+		int size = storage.length();
 
 		createDate = System.currentTimeMillis();
 		accessCount = new LoggingCount();
@@ -90,26 +121,38 @@ public class EntropyPool2 implements EntropyPool {
 		extractedEntropy = new LoggingReference<>(0L);
 		mixCount = new LoggingCount();
 
-		hashX = 0;
-		hashY = 0;
+		hashX = new int[rehashStripes];
+		hashY = new int[rehashStripes];
+
+		this.storage = storage;
 
-		buffer = new byte[size];
+		requireThat(size / rehashStripes >= messageDigest.get().getDigestLength(),
+		            "size / rehashStripes < messageDigest.digestLength: " + size / rehashStripes + " < " +
+		            messageDigest.get().getDigestLength());
 	}
 
 	@SuppressWarnings("AssignmentToCollectionOrArrayFieldFromParameter")
 	EntropyPool2(long createDate, LoggingCount accessCount, LoggingReference<SecureRandom> secureRandom,
 	             LoggingReference<MessageDigest> messageDigest, LoggingReference<Cipher> cipher,
 	             LoggingReference<Long> injectedEntropy, LoggingReference<Long> extractedEntropy,
-	             LoggingCount mixCount, int hashX, int hashY, byte[] buffer) {
+	             LoggingCount mixCount, int[] hashX, int[] hashY, PoolStorage storage) {
 		requireNonNull(accessCount, "accessCount == null");
 		requireNonNull(secureRandom, "secureRandom == null");
 		requireNonNull(messageDigest, "messageDigest == null");
 		requireNonNull(cipher, "cipher == null");
 		requireNonNull(mixCount, "mixCount == null");
-		requireThat(hashX >= 0, "hashX not in range [0,buffer.length):" + hashX);
-		requireThat(hashX < buffer.length, "hashX not in range [0,buffer.length): " + hashX + " >= " + buffer.length);
-		requireThat(hashY >= 0, "hashY not in range [0,buffer.length): " + hashY);
-		requireThat(hashY < buffer.length, "hashY not in range [0,buffer.length): " + hashY + " >= " + buffer.length);
+		requireThat(hashX.length > 0, "hashX.length == 0");
+		requireThat(hashX.length == hashY.length,
+		            "hashX.length != hashY.length: " + hashX.length + " != " + hashY.length);
+		for (int stripe = 0; stripe < hashX.length; stripe++) {
+			int length = RehashMixer.stripeLength(storage.length(), hashX.length, stripe);
+			requireThat(hashX[stripe] >= 0, "hashX[" + stripe + "] not in range [0,stripeLength): " + hashX[stripe]);
+			requireThat(hashX[stripe] < length, "hashX[" + stripe + "] not in range [0,stripeLength): " +
+			                                    hashX[stripe] + " >= " + length);
+			requireThat(hashY[stripe] >= 0, "hashY[" + stripe + "] not in range [0,stripeLength): " + hashY[stripe]);
+			requireThat(hashY[stripe] < length, "hashY[" + stripe + "] not in range [0,stripeLength): " +
+			                                    hashY[stripe] + " >= " + length);
+		}
 
 		this.createDate = createDate;
 		this.accessCount = accessCount;
@@ -121,13 +164,13 @@ public class EntropyPool2 implements EntropyPool {
 		this.mixCount = new LoggingCount(mixCount);
 		this.hashX = hashX;
 		this.hashY = hashY;
-		this.buffer = buffer;
+		this.storage = storage;
 
 		requireThat(this.injectedEntropy.get() >= 0, "injectedEntropy.value < 0: " + this.injectedEntropy.get());
 		requireThat(this.extractedEntropy.get() >= 0, "extractedEntropy.value < 0: " + this.extractedEntropy.get());
-		requireThat(this.buffer.length >= this.messageDigest.get().getDigestLength(),
-		            "buffer.length < messageDigest.digestLength: " + this.buffer.length + " < " +
-		            this.messageDigest.get().getDigestLength());
+		requireThat(storage.length() / hashX.length >= this.messageDigest.get().getDigestLength(),
+		            "storage.length() / rehashStripes < messageDigest.digestLength: " +
+		            storage.length() / hashX.length + " < " + this.messageDigest.get().getDigestLength());
 	}
 
 	public static EntropyPool2 newInstance() throws NoSuchAlgorithmException, NoSuchPaddingException {
@@ -135,6 +178,15 @@ public class EntropyPool2 implements EntropyPool {
 	}
 
 	public static EntropyPool2 loadFromFile(File poolFile) throws IOException {
+		return loadFromFile(poolFile, HeapPoolStorage::new);
+	}
+
+	/**
+	 * Loads the pool into storage created by {@code storageFactory}, which gets the pool size in bytes.
+	 */
+	public static EntropyPool2 loadFromFile(File poolFile, IntFunction<PoolStorage> storageFactory)
+			throws IOException {
+		requireNonNull(storageFactory, "storageFactory == null");
 		requireThat(poolFile.exists(), "poolFile.exists() == false: " + poolFile);
 		requireThat(poolFile.isFile(), "poolFile.isFile() == false: " + poolFile);
 		requireThat(poolFile.canRead(), "poolFile.canRead() == false: " + poolFile);
@@ -144,12 +196,18 @@ public class EntropyPool2 implements EntropyPool {
 		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(poolFile)))) {
 			Version version = EntropyPoolLoader.readHeader(in);
 
-			if (version.getMajor() != 2)
-				throw new IllegalArgumentException("File is not version 2: " + poolFile + ". You can use" +
+			EntropyPool2 pool;
+			if (version.getMajor() == EntropyPool2FileV3.FORMAT_VERSION.getMajor())
+				pool = EntropyPool2FileV3.loadFromFile(poolFile, storageFactory);
+			else if (version.getMajor() == 2)
+				pool = readFrom(in, version, storageFactory);
+			else if (version.getMajor() == EncryptedEntropyPoolFile.FORMAT_VERSION.getMajor())
+				throw new IllegalArgumentException("File is encrypted: " + poolFile + ". You can use" +
+				                                   " EncryptedEntropyPoolFile.loadFromFile() to load it.");
+			else
+				throw new IllegalArgumentException("File is not version 2 or 3: " + poolFile + ". You can use" +
 				                                   " EntropyPoolLoader.loadPoolFromFile() to load any file version.");
 
-			EntropyPool2 pool = readFrom(in);
-
 			if (Logger.getGlobal().isLoggable(Level.FINER))
 				Logger.getGlobal().finer("Loaded pool: " + pool);
 
@@ -170,20 +228,35 @@ public class EntropyPool2 implements EntropyPool {
 
 		LogTimer.start(Level.INFO, "Saving Entropy Pool file " + tempFile);
 
-		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
-			writeTo(out);
-		}
+		EntropyPool2FileV3.saveToFile(this, tempFile);
+
+		replacePoolFile(poolFile, bakFile, tempFile);
+
+		LogTimer.finishAndLog(Level.FINE, "Saved the Entropy Pool in {0} seconds");
+	}
 
+	/**
+	 * Moves the pool file, if any, to the backup file and the newly written temp file to the pool file, each with an
+	 * atomic move, so there's always a complete pool file or backup.
+	 */
+	static void replacePoolFile(File poolFile, File bakFile, File tempFile) throws IOException {
 		if (poolFile.exists())
 			Files.move(poolFile.toPath(), bakFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
 
 		Files.move(tempFile.toPath(), poolFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
-
-		LogTimer.finishAndLog(Level.FINE, "Saved the Entropy Pool in {0} seconds");
 	}
 
 	public static EntropyPool2 readFrom(DataInput in) throws IOException {
-		EntropyPool2 pool = EntropyPool2Loader.readFrom(in);
+		return readFrom(in, CURRENT_VERSION);
+	}
+
+	public static EntropyPool2 readFrom(DataInput in, Version version) throws IOException {
+		return readFrom(in, version, HeapPoolStorage::new);
+	}
+
+	public static EntropyPool2 readFrom(DataInput in, Version version, IntFunction<PoolStorage> storageFactory)
+			throws IOException {
+		EntropyPool2 pool = EntropyPool2Loader.readFrom(in, version, storageFactory);
 		return pool;
 	}
 
@@ -241,10 +314,24 @@ public class EntropyPool2 implements EntropyPool {
 
 	public int           getMixCount()                                 { return mixCount.get(); }
 
+	public long          getCoalescedMixCount()                        { return coalescedMixCount; }
+
+	public int           getRehashStripeCount()                        { return hashX.length; }
+
 	public long          getMixDate()                                  { return mixCount.getCountDate(); }
 
 	//@formatter:on
 
+	/**
+	 * Returns the sum of all modify counters. It changes whenever state that is saved to file changes, so a pool is
+	 * dirty when this differs from the value at the last save.
+	 */
+	public long getModifyCount() {
+		return (long)accessCount.get() + mixCount.get() +
+		       secureRandom.getModifyCount() + messageDigest.getModifyCount() + cipher.getModifyCount() +
+		       injectedEntropy.getModifyCount() + extractedEntropy.getModifyCount();
+	}
+
 	public void injectEntropyFromFileOrDirectory(File fileOrDirectory) throws IOException {
 		requireThat(fileOrDirectory.exists(), "fileOrDirectory doesn't exist: " + fileOrDirectory);
 
@@ -255,41 +342,168 @@ public class EntropyPool2 implements EntropyPool {
 	public void injectEntropy(byte[] bytes, int entropyBits) {
 		requireThat(bytes.length > 0, "bytes.length == 0");
 
-		for (byte b : bytes) {
-			buffer[writePointer] ^= b;
-			writePointer++;
+		injectEntropy(bytes, 0, bytes.length, entropyBits);
+	}
+
+	public void injectEntropy(byte[] bytes, int offset, int length, int entropyBits) {
+		requireThat(length > 0, "length <= 0: " + length);
+		requireThat(offset >= 0, "offset < 0: " + offset);
+		requireThat(offset + length <= bytes.length,
+		            "offset + length > bytes.length: " + (offset + length) + " > " + bytes.length);
+
+		injectEntropy(ByteBuffer.wrap(bytes, offset, length).order(storage.buffer().order()), entropyBits);
+	}
 
-			if (writePointer == buffer.length) {
+	@Override
+	public void injectEntropy(ByteBuffer source, int entropyBits) {
+		requireThat(source.hasRemaining(), "source.remaining() == 0");
+		requireThat(entropyBits >= 0 && entropyBits <= source.remaining() * 8L,
+		            "entropyBits out of range [0, " + source.remaining() * 8L + "]: " + entropyBits);
+
+		ByteBuffer buffer = storage.buffer();
+
+		// XOR one segment at a time, up to where the write pointer wraps
+		int position = source.position();
+		int end      = source.limit();
+		while (position < end) {
+			int segmentLength = Math.min(end - position, buffer.capacity() - writePointer);
+
+			xor(buffer, writePointer, source, position, segmentLength);
+			writePointer += segmentLength;
+			position += segmentLength;
+
+			if (writePointer == buffer.capacity()) {
 				writePointer = 0;
-				mix();
+				mixNow();
 			}
 		}
 
-		injectedEntropy.update(value -> Math.min(value + entropyBits, buffer.length * 8L));
+		source.position(end);
+		creditEntropy(entropyBits);
+	}
+
+	/**
+	 * @return whether bytes were injected since the last mix
+	 */
+	boolean isMixPending() {
+		return writePointer > 0;
+	}
+
+	void creditEntropy(long entropyBits) {
+		injectedEntropy.update(value -> Math.min(value + entropyBits, storage.length() * 8L));
+	}
+
+	/**
+	 * Counts all available entropy as extracted, for when the counters may be older than the pool.
+	 */
+	void discardAvailableEntropy() {
+		long injected = injectedEntropy.get();
+		extractedEntropy.update(value -> Math.max(value, injected));
+	}
+
+	/**
+	 * Prepares a pool that was loaded from an older state than the one that last served extractions: fresh seed
+	 * material is mixed in so the served output doesn't repeat, and all available entropy is discarded because the
+	 * extracted entropy counter rolled back.
+	 */
+	void recoverFromUncleanShutdown() {
+		byte[] seed = new byte[RECOVERY_SEED_LENGTH];
+		new SecureRandom().nextBytes(seed);
+		try {
+			injectEntropy(seed, 0);
+		} finally {
+			Arrays.fill(seed, (byte)0);
+		}
+
+		mixNow();
+		discardAvailableEntropy();
 	}
 
 	@Override
 	public byte[] extractEntropy(int numBytes) {
-		if (numBytes * 8 > getAvailableEntropy())
+		byte[] bytes = new byte[numBytes];
+		extractEntropy(bytes, 0, numBytes);
+		return bytes;
+	}
+
+	@Override
+	public void extractEntropy(byte[] bytes, int offset, int length) {
+		requireThat(offset >= 0, "offset < 0: " + offset);
+		requireThat(offset + length <= bytes.length,
+		            "offset + length > bytes.length: " + (offset + length) + " > " + bytes.length);
+		prepareExtraction(length);
+
+		ByteBuffer buffer = storage.buffer();
+		ByteBuffer target = ByteBuffer.wrap(bytes).order(buffer.order());
+
+		Arrays.fill(bytes, offset, offset + length, (byte)0);
+		for (int i = 0; i < buffer.capacity(); i += length)
+			xor(target, offset, buffer, i, Math.min(length, buffer.capacity() - i));
+
+		finishExtraction(length);
+	}
+
+	@Override
+	public void extractEntropy(ByteBuffer target) {
+		int length   = target.remaining();
+		int position = target.position();
+		prepareExtraction(length);
+
+		ByteBuffer buffer = storage.buffer();
+
+		for (int i = 0; i < length; i++)
+			target.put(position + i, (byte)0);
+		for (int i = 0; i < buffer.capacity(); i += length)
+			xor(target, position, buffer, i, Math.min(length, buffer.capacity() - i));
+
+		target.position(position + length);
+		finishExtraction(length);
+	}
+
+	private void prepareExtraction(int numBytes) {
+		requireThat(numBytes > 0, "numBytes <= 0: " + numBytes);
+		if (numBytes * 8L > getAvailableEntropy())
 			throw new IllegalStateException(
-					"More entropy requested than is available: " + numBytes * 8 + " > " + getAvailableEntropy());
+					"More entropy requested than is available: " + numBytes * 8L + " > " + getAvailableEntropy());
 
 		if (writePointer > 0)
-			mix();
-
-		byte[] bytes = new byte[numBytes];
-		for (int i = 0; i < buffer.length; i++)
-			bytes[i % numBytes] ^= buffer[i];
+			mixNow();
+	}
 
-		mix();
+	private void finishExtraction(int numBytes) {
+		mixNow();
 
 		extractedEntropy.update(value -> Math.addExact(value, numBytes * 8L));
-
-		return bytes;
 	}
 
 	@Override
 	public void mix() {
+		if (batchDepth > 0) {
+			coalescedMixCount++;
+			return;
+		}
+
+		mixNow();
+	}
+
+	@Override
+	public void beginBatch() {
+		batchDepth++;
+	}
+
+	@Override
+	public void commitBatch() {
+		requireState(batchDepth > 0, "No batch in progress");
+
+		batchDepth--;
+		if (batchDepth == 0)
+			mixNow();
+	}
+
+	/**
+	 * Mixes regardless of any batch in progress.
+	 */
+	void mixNow() {
 		LogTimer.start();
 
 		mixer.mix(this);
@@ -303,7 +517,7 @@ public class EntropyPool2 implements EntropyPool {
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder(getClass().getSimpleName()).append('[');
-		sb.append("size=").append(buffer.length);
+		sb.append("size=").append(storage.length());
 		sb.append(", availableEntropy=").append(getAvailableEntropy());
 		return sb.toString();
 	}
@@ -324,15 +538,12 @@ public class EntropyPool2 implements EntropyPool {
 
 	LoggingCount                   mixCount()         { return mixCount; }
 
-	int                            hashX()            { return hashX; }
-
-	void                           hashX(int hashX)   { this.hashX = hashX; }
-
-	int                            hashY()            { return hashY; }
-
-	void                           hashY(int hashY)   { this.hashY = hashY; }
+	@SuppressWarnings("ReturnOfCollectionOrArrayField")
+	int[]                          hashX()            { return hashX; }
 
 	@SuppressWarnings("ReturnOfCollectionOrArrayField")
-	byte[]                         buffer()           { return buffer; }
+	int[]                          hashY()            { return hashY; }
+
+	PoolStorage                    storage()          { return storage; }
 }
 
@@ -0,0 +1,264 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.function.IntFunction;
+import java.util.zip.CRC32;
+
+import org.digitalmodular.utilities.container.Version;
+import org.digitalmodular.utilities.io.InvalidHeaderException;
+import static org.digitalmodular.entropypool.EntropyPool.CURRENT_VERSION;
+import static org.digitalmodular.entropypool.EntropyPool.MAGIC;
+import static org.digitalmodular.utilities.Verifier.requireThat;
+
+/**
+ * Version 3 of the pool file format, in which the pool bytes are stored as aligned chunks that are written, read and
+ * checksummed on several threads with positional channel I/O.
+ * <p>
+ * The file starts with a fixed 64-byte header that holds the lengths and CRC32s of the sections that follow: the
+ * metadata (the same fields as in version 2), a table with the CRC32 of every chunk, and the pool bytes at a
+ * page-aligned offset. All checksums are verified before anything is parsed. The header starts with the same magic and
+ * version preamble as version 2 (with an empty title), so {@link EntropyPoolLoader#readHeader(DataInput)} can tell the
+ * formats apart.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-24
+enum EntropyPool2FileV3 {
+	;
+
+	static final int DEFAULT_CHUNK_LENGTH = 1024 * 1024;
+
+	/** The revision tracks the layout of the metadata section. */
+	static final Version FORMAT_VERSION = new Version(3, 0, Version.Release.ALPHA, CURRENT_VERSION.getRevision());
+
+	private static final int HEADER_LENGTH    = 64;
+	private static final int BODY_ALIGN       = 4096;
+	private static final int HEADER_CRC_INDEX = HEADER_LENGTH - 4;
+
+	// Indices of the fields after the preamble (magic, empty title, version)
+	private static final int PREAMBLE_LENGTH       = MAGIC.length() + 2 + 7;
+	private static final int METADATA_LENGTH_INDEX = PREAMBLE_LENGTH;
+	private static final int METADATA_CRC_INDEX    = METADATA_LENGTH_INDEX + 4;
+	private static final int BODY_OFFSET_INDEX     = METADATA_CRC_INDEX + 4;
+	private static final int BODY_LENGTH_INDEX     = BODY_OFFSET_INDEX + 4;
+	/** The CRC of the chunk table */
+	private static final int CHUNKS_CRC_INDEX      = BODY_LENGTH_INDEX + 4;
+	private static final int CHUNK_LENGTH_INDEX    = CHUNKS_CRC_INDEX + 4;
+
+	static void saveToFile(EntropyPool2 pool, File file) throws IOException {
+		saveToFile(file, getMetadata(pool), pool.storage().buffer(), DEFAULT_CHUNK_LENGTH);
+	}
+
+	/**
+	 * Returns the contents of the metadata section, which ends with the pool length.
+	 */
+	static byte[] getMetadata(EntropyPool2 pool) throws IOException {
+		ByteArrayOutputStream metadata = new ByteArrayOutputStream(256);
+		try (DataOutputStream out = new DataOutputStream(metadata)) {
+			EntropyPool2Saver.writeMetadata(pool, out);
+			out.writeInt(pool.storage().length());
+		}
+
+		return metadata.toByteArray();
+	}
+
+	/**
+	 * Writes a pool given as its metadata section and pool bytes, which don't have to belong to a live pool.
+	 *
+	 * @param poolBytes   the pool bytes from index 0 to the capacity. Only absolute operations are used.
+	 * @param chunkLength a multiple of 4096
+	 */
+	static void saveToFile(File file, byte[] metadataBytes, ByteBuffer poolBytes, int chunkLength) throws IOException {
+		requireThat(chunkLength > 0 && chunkLength % BODY_ALIGN == 0,
+		            "chunkLength not a positive multiple of " + BODY_ALIGN + ": " + chunkLength);
+
+		int bodyLength = poolBytes.capacity();
+		int numChunks  = getNumChunks(bodyLength, chunkLength);
+
+		ByteBuffer metadata   = ByteBuffer.wrap(metadataBytes);
+		ByteBuffer chunkTable = ByteBuffer.allocate(numChunks * 4);
+		int        bodyOffset = align(HEADER_LENGTH + metadata.remaining() + chunkTable.remaining());
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+		                                            StandardOpenOption.CREATE,
+		                                            StandardOpenOption.TRUNCATE_EXISTING)) {
+			// The chunk table needs the checksums, so the chunks go first
+			ParallelChunks.run(numChunks, "EntropyPool saver", (firstChunk, stride) -> {
+				ByteBuffer body = poolBytes.duplicate();
+
+				for (int chunk = firstChunk; chunk < numChunks; chunk += stride) {
+					int offset = chunk * chunkLength;
+					body.limit(Math.min(offset + chunkLength, bodyLength)).position(offset);
+
+					chunkTable.putInt(chunk * 4, crc(body));
+					writeFully(channel, body, (long)bodyOffset + offset);
+				}
+			});
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			writePreamble(header);
+			header.putInt(METADATA_LENGTH_INDEX, metadata.remaining());
+			header.putInt(METADATA_CRC_INDEX, crc(metadata));
+			header.putInt(BODY_OFFSET_INDEX, bodyOffset);
+			header.putInt(BODY_LENGTH_INDEX, bodyLength);
+			header.putInt(CHUNKS_CRC_INDEX, crc(chunkTable));
+			header.putInt(CHUNK_LENGTH_INDEX, chunkLength);
+			header.putInt(HEADER_CRC_INDEX, crc(header, HEADER_CRC_INDEX));
+			header.clear();
+
+			ByteBuffer[] sections = {header, metadata, chunkTable};
+			while (chunkTable.hasRemaining())
+				channel.write(sections);
+
+			channel.force(false);
+		}
+	}
+
+	static EntropyPool2 loadFromFile(File file, IntFunction<PoolStorage> storageFactory) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			readFully(channel, header, 0);
+
+			if (header.getInt(HEADER_CRC_INDEX) != crc(header, HEADER_CRC_INDEX))
+				throw new IOException("Header checksum mismatch: " + file);
+
+			Version version;
+			try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(header.array()))) {
+				version = EntropyPoolLoader.readHeader(in);
+			}
+			if (version.getMajor() != FORMAT_VERSION.getMajor())
+				throw new InvalidHeaderException("File is not version 3: " + file);
+
+			int metadataLength = header.getInt(METADATA_LENGTH_INDEX);
+			int bodyOffset     = header.getInt(BODY_OFFSET_INDEX);
+			int bodyLength     = header.getInt(BODY_LENGTH_INDEX);
+			int chunkLength    = header.getInt(CHUNK_LENGTH_INDEX);
+			if (metadataLength < 0 || bodyLength <= 0 || chunkLength <= 0 || chunkLength % BODY_ALIGN != 0)
+				throw new IOException("Invalid section lengths: " + file);
+
+			int numChunks = getNumChunks(bodyLength, chunkLength);
+			if (bodyOffset < HEADER_LENGTH + metadataLength + numChunks * 4L)
+				throw new IOException("Invalid section lengths: " + file);
+			if (channel.size() != (long)bodyOffset + bodyLength)
+				throw new IOException("File has the wrong size: " + channel.size() + " != " +
+				                      ((long)bodyOffset + bodyLength) + ": " + file);
+
+			ByteBuffer metadata   = ByteBuffer.allocate(metadataLength);
+			ByteBuffer chunkTable = ByteBuffer.allocate(numChunks * 4);
+			readFully(channel, metadata, HEADER_LENGTH);
+			metadata.flip();
+			if (header.getInt(METADATA_CRC_INDEX) != crc(metadata))
+				throw new IOException("Metadata checksum mismatch: " + file);
+
+			readFully(channel, chunkTable, HEADER_LENGTH + metadataLength);
+			chunkTable.flip();
+			if (header.getInt(CHUNKS_CRC_INDEX) != crc(chunkTable))
+				throw new IOException("Chunk table checksum mismatch: " + file);
+
+			PoolStorage storage = storageFactory.apply(bodyLength);
+			try {
+				ParallelChunks.run(numChunks, "EntropyPool loader", (firstChunk, stride) -> {
+					ByteBuffer body = storage.buffer().duplicate();
+
+					for (int chunk = firstChunk; chunk < numChunks; chunk += stride) {
+						int offset = chunk * chunkLength;
+						body.limit(Math.min(offset + chunkLength, bodyLength)).position(offset);
+
+						readFully(channel, body, (long)bodyOffset + offset);
+						body.position(offset);
+						if (chunkTable.getInt(chunk * 4) != crc(body))
+							throw new IOException("Checksum mismatch in chunk " + chunk + ": " + file);
+					}
+				});
+
+				try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(metadata.array()))) {
+					EntropyPool2 pool = EntropyPool2Loader.readFromWithStorage(in, version, length -> {
+						if (length != bodyLength)
+							throw new IOException("Pool length mismatch: " + length + " != " + bodyLength);
+
+						return storage;
+					});
+
+					if (in.available() > 0)
+						throw new IOException(in.available() + " extraneous metadata byte(s): " + file);
+
+					return pool;
+				}
+			} catch (IOException | RuntimeException ex) {
+				storage.close();
+				throw ex;
+			}
+		}
+	}
+
+	private static void writePreamble(ByteBuffer header) throws IOException {
+		ByteArrayOutputStream preamble = new ByteArrayOutputStream(PREAMBLE_LENGTH);
+		try (DataOutputStream out = new DataOutputStream(preamble)) {
+			out.writeBytes(MAGIC);
+			out.writeUTF("");
+			FORMAT_VERSION.writeTo(out);
+		}
+
+		header.put(preamble.toByteArray());
+	}
+
+	/** Reads until the buffer is full. The position advances as usual. */
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int start = buffer.position();
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position() - start) < 0)
+				throw new EOFException();
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int start = buffer.position();
+		while (buffer.hasRemaining())
+			channel.write(buffer, position + buffer.position() - start);
+	}
+
+	private static int getNumChunks(int bodyLength, int chunkLength) {
+		return (int)((bodyLength + (long)chunkLength - 1) / chunkLength);
+	}
+
+	private static int align(int offset) {
+		return (offset + BODY_ALIGN - 1) & -BODY_ALIGN;
+	}
+
+	/** Checksums the remaining bytes without changing the position. */
+	private static int crc(ByteBuffer section) {
+		CRC32 crc = new CRC32();
+		crc.update(section.duplicate());
+		return (int)crc.getValue();
+	}
+
+	private static int crc(ByteBuffer header, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(header.array(), 0, length);
+		return (int)crc.getValue();
+	}
+}
@@ -25,6 +25,7 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.logging.Level;
+import java.util.function.IntFunction;
 import java.util.logging.Logger;
 import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
@@ -32,6 +33,7 @@ import javax.crypto.NoSuchPaddingException;
 import org.digitalmodular.utilities.SecureRandomFactory;
 import org.digitalmodular.utilities.container.LoggingCount;
 import org.digitalmodular.utilities.container.LoggingReference;
+import org.digitalmodular.utilities.container.Version;
 import static org.digitalmodular.utilities.io.DataIO.*;
 import static org.digitalmodular.entropypool.EntropyPool2.*;
 
@@ -44,7 +46,28 @@ import static org.digitalmodular.entropypool.EntropyPool2.*;
 enum EntropyPool2Loader {
 	;
 
-	static EntropyPool2 readFrom(DataInput in) throws IOException {
+	/** The first revision that stores hashX and hashY per rehash stripe. */
+	private static final int STRIPED_REHASH_REVISION = 22;
+
+	static EntropyPool2 readFrom(DataInput in, Version version) throws IOException {
+		return readFrom(in, version, HeapPoolStorage::new);
+	}
+
+	static EntropyPool2 readFrom(DataInput in, Version version, IntFunction<PoolStorage> storageFactory)
+			throws IOException {
+		return readFromWithStorage(in, version, length -> {
+			PoolStorage storage = storageFactory.apply(length);
+			readByteBuffer(in, storage.buffer());
+			return storage;
+		});
+	}
+
+	/**
+	 * Reads everything but the pool bytes from the stream. Once the pool length is known, {@code storageReader}
+	 * provides the storage with the pool bytes, from the stream or from elsewhere.
+	 */
+	static EntropyPool2 readFromWithStorage(DataInput in, Version version, StorageReader storageReader)
+			throws IOException {
 		long         createDate  = in.readLong();
 		LoggingCount accessCount = readLoggingCount(in);
 
@@ -56,13 +79,20 @@ enum EntropyPool2Loader {
 		LoggingReference<Long> extractedEntropy = readLoggingReference(in, in.readLong());
 		LoggingCount           mixCount         = readLoggingCount(in);
 
-		int hashX = in.readInt();
-		int hashY = in.readInt();
+		int[] hashX;
+		int[] hashY;
+		if (version.getRevision() < STRIPED_REHASH_REVISION) {
+			hashX = new int[]{in.readInt()};
+			hashY = new int[]{in.readInt()};
+		} else {
+			hashX = readIntArray(in);
+			hashY = readIntArray(in);
+		}
 
-		byte[] buffer = readByteArray(in);
+		PoolStorage storage = storageReader.read(in.readInt());
 
 		EntropyPool2 pool = new EntropyPool2(createDate, accessCount, secureRandom, messageDigest, cipher,
-		                                     injectedEntropy, extractedEntropy, mixCount, hashX, hashY, buffer);
+		                                     injectedEntropy, extractedEntropy, mixCount, hashX, hashY, storage);
 		return pool;
 	}
 
@@ -146,4 +176,9 @@ enum EntropyPool2Loader {
 
 		return cipher;
 	}
+
+	@FunctionalInterface
+	interface StorageReader {
+		PoolStorage read(int length) throws IOException;
+	}
 }
@@ -36,17 +36,21 @@ enum EntropyPool2Saver {
 
 	static void writeTo(EntropyPool2 pool, DataOutput out) throws IOException {
 		writeHeader(out);
-		writePool(pool, out);
+		writeMetadata(pool, out);
+		writeByteBuffer(out, pool.storage().buffer());
 	}
 
-	private static void writeHeader(DataOutput out) throws IOException {
+	static void writeHeader(DataOutput out) throws IOException {
 		out.writeBytes(MAGIC);
 		out.writeUTF(PROGRAM_TITLE);
 
 		CURRENT_VERSION.writeTo(out);
 	}
 
-	private static void writePool(EntropyPool2 pool, DataOutput out) throws IOException {
+	/**
+	 * Writes everything but the pool bytes and their length prefix.
+	 */
+	static void writeMetadata(EntropyPool2 pool, DataOutput out) throws IOException {
 		out.writeLong(pool.getCreateDate());
 		writeLoggingCount(out, pool.accessCount());
 
@@ -58,9 +62,7 @@ enum EntropyPool2Saver {
 		writeLoggingReference(out, pool.extractedEntropy());
 		writeLoggingCount(out, pool.mixCount());
 
-		out.writeInt(pool.hashX());
-		out.writeInt(pool.hashY());
-
-		writeByteArray(out, pool.buffer());
+		writeIntArray(out, pool.hashX());
+		writeIntArray(out, pool.hashY());
 	}
 }
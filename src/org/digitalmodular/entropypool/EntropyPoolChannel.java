@@ -0,0 +1,88 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Extracts from an {@link EntropyPool} directly into the buffers it is read into. Every read extracts at most the
+ * entropy available at that moment, and the end of the stream is reached when the pool is exhausted. Other
+ * consumers may extract from the same pool concurrently; a read then returns fewer bytes. Closing the channel doesn't
+ * affect the pool.
+ * <p>
+ * Every read is a separate extraction, which mixes the pool, so read in large blocks.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-16
+public class EntropyPoolChannel implements ReadableByteChannel {
+	private final EntropyPool pool;
+
+	private volatile boolean open = true;
+
+	public EntropyPoolChannel(EntropyPool pool) {
+		requireNonNull(pool, "pool == null");
+
+		this.pool = pool;
+	}
+
+	@Override
+	public int read(ByteBuffer target) throws ClosedChannelException {
+		if (!open)
+			throw new ClosedChannelException();
+
+		if (!target.hasRemaining())
+			return 0;
+
+		while (true) {
+			int numBytes = (int)Math.min(target.remaining(), pool.getAvailableEntropy() / 8);
+			if (numBytes == 0)
+				return -1;
+
+			int limit = target.limit();
+			target.limit(target.position() + numBytes);
+			try {
+				pool.extractEntropy(target);
+				return numBytes;
+			} catch (IllegalStateException ex) {
+				// Another consumer extracted in between, so retry with what is left
+				if (pool.getAvailableEntropy() / 8 >= numBytes)
+					throw ex;
+			} finally {
+				target.limit(limit);
+			}
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() {
+		open = false;
+	}
+}
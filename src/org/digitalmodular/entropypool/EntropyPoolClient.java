@@ -0,0 +1,182 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.digitalmodular.entropypool;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import static java.util.Objects.requireNonNull;
+
+import static org.digitalmodular.entropypool.EntropyPoolDaemon.FRAME_HEADER_LENGTH;
+import static org.digitalmodular.entropypool.EntropyPoolDaemon.MAX_PAYLOAD_LENGTH;
+import static org.digitalmodular.entropypool.EntropyPoolDaemon.REQUEST_AUTH;
+import static org.digitalmodular.entropypool.EntropyPoolDaemon.REQUEST_EXTRACT;
+import static org.digitalmodular.entropypool.EntropyPoolDaemon.REQUEST_INJECT;
+import static org.digitalmodular.entropypool.EntropyPoolDaemon.REQUEST_STATUS;
+import static org.digitalmodular.entropypool.EntropyPoolDaemon.RESPONSE_OK;
+import static org.digitalmodular.entropypool.EntropyPoolDaemon.STATUS_LENGTH;
+import static org.digitalmodular.entropypool.EntropyPoolDaemon.TOKEN_LENGTH;
+import static org.digitalmodular.utilities.Verifier.requireThat;
+
+/**
+ * Blocking client for an {@link EntropyPoolDaemon}. Every call is one request and waits for its response. The
+ * connection is authenticated with the daemon's token when the client is constructed.
+ * <p>
+ * This class is not thread-safe. Use one client per thread, or synchronize on it.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-29
+public class EntropyPoolClient implements Closeable {
+	private final SocketChannel channel;
+	private final ByteBuffer    header = ByteBuffer.allocate(FRAME_HEADER_LENGTH + 4);
+
+	/**
+	 * Connects to the default port, with the token in {@link EntropyPoolDaemon#DEFAULT_TOKEN_FILE}.
+	 */
+	public EntropyPoolClient() throws IOException {
+		this(new InetSocketAddress(InetAddress.getLoopbackAddress(), EntropyPoolDaemon.DEFAULT_PORT),
+		     EntropyPoolDaemon.readToken(EntropyPoolDaemon.DEFAULT_TOKEN_FILE));
+	}
+
+	public EntropyPoolClient(InetSocketAddress address, byte[] token) throws IOException {
+		requireNonNull(address, "address == null");
+		requireNonNull(token, "token == null");
+		requireThat(token.length == TOKEN_LENGTH, "token.length != " + TOKEN_LENGTH + ": " + token.length);
+
+		channel = SocketChannel.open(address);
+		try {
+			channel.socket().setTcpNoDelay(true);
+			authenticate(token);
+		} catch (IOException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	private void authenticate(byte[] token) throws IOException {
+		header.clear();
+		header.put(REQUEST_AUTH).putInt(TOKEN_LENGTH);
+		header.flip();
+
+		writeFully(header, ByteBuffer.wrap(token));
+
+		try {
+			readResponse(0);
+		} catch (EOFException ex) {
+			throw new IOException("Entropy Pool daemon refused the token", ex);
+		}
+	}
+
+	public void injectEntropy(byte[] bytes, int entropyBits) throws IOException {
+		requireThat(bytes.length > 0, "bytes.length == 0");
+		requireThat(bytes.length <= MAX_PAYLOAD_LENGTH - 4,
+		            "bytes.length > " + (MAX_PAYLOAD_LENGTH - 4) + ": " + bytes.length);
+
+		header.clear();
+		header.put(REQUEST_INJECT).putInt(4 + bytes.length).putInt(entropyBits);
+		header.flip();
+		writeFully(header, ByteBuffer.wrap(bytes));
+
+		readResponse(0);
+	}
+
+	public byte[] extractEntropy(int numBytes) throws IOException {
+		requireThat(numBytes > 0, "numBytes <= 0: " + numBytes);
+		requireThat(numBytes <= MAX_PAYLOAD_LENGTH, "numBytes > " + MAX_PAYLOAD_LENGTH + ": " + numBytes);
+
+		header.clear();
+		header.put(REQUEST_EXTRACT).putInt(4).putInt(numBytes);
+		header.flip();
+		writeFully(header);
+
+		return readResponse(numBytes).array();
+	}
+
+	public long getInjectedEntropy() throws IOException { return getStatus().getLong(0); }
+
+	public long getExtractedEntropy() throws IOException { return getStatus().getLong(8); }
+
+	public long getAvailableEntropy() throws IOException { return getStatus().getLong(16); }
+
+	private ByteBuffer getStatus() throws IOException {
+		header.clear();
+		header.put(REQUEST_STATUS).putInt(0);
+		header.flip();
+		writeFully(header);
+
+		return readResponse(STATUS_LENGTH);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private void writeFully(ByteBuffer... buffers) throws IOException {
+		while (buffers[buffers.length - 1].hasRemaining())
+			channel.write(buffers);
+	}
+
+	/**
+	 * Reads one response frame.
+	 *
+	 * @throws IOException when the daemon answered with an error, or with an unexpected length
+	 */
+	private ByteBuffer readResponse(int expectedLength) throws IOException {
+		header.clear().limit(FRAME_HEADER_LENGTH);
+		readFully(header);
+
+		byte type   = header.get(0);
+		int  length = header.getInt(1);
+		if (length < 0 || length > MAX_PAYLOAD_LENGTH)
+			throw new IOException("Invalid payload length: " + length);
+
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		readFully(payload);
+		payload.flip();
+
+		if (type != RESPONSE_OK)
+			throw new IOException("Entropy Pool daemon error: " +
+			                      new String(payload.array(), StandardCharsets.UTF_8));
+		if (length != expectedLength)
+			throw new IOException("Unexpected payload length: " + length + " != " + expectedLength);
+
+		return payload;
+	}
+
+	private void readFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0)
+				throw new EOFException("Entropy Pool daemon closed the connection");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + '[' + channel + ']';
+	}
+}
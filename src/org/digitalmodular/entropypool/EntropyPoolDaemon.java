@@ -0,0 +1,493 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import static java.util.Objects.requireNonNull;
+
+import static org.digitalmodular.utilities.Verifier.requireThat;
+
+/**
+ * A resident service that owns a pool and serves inject, extract and status requests over a socket, so consumers
+ * don't pay for loading, provider registration and saving on every call.
+ * <p>
+ * One selector thread serves all connections with non-blocking I/O and runs the pool operations itself, so the cost
+ * per request is the pool operation plus one read and one write. Requests may be pipelined.
+ * <p>
+ * Every request and response is a frame of one type byte, a 4-byte big-endian payload length, and the payload:
+ * <table summary="Protocol">
+ * <tr><th>Request</th><th>Request payload</th><th>Response payload</th></tr>
+ * <tr><td>{@value #REQUEST_AUTH}</td><td>token ({@value #TOKEN_LENGTH} bytes)</td><td>none</td></tr>
+ * <tr><td>{@value #REQUEST_INJECT}</td><td>entropy bits (int), bytes</td><td>none</td></tr>
+ * <tr><td>{@value #REQUEST_EXTRACT}</td><td>number of bytes (int)</td><td>bytes</td></tr>
+ * <tr><td>{@value #REQUEST_STATUS}</td><td>none</td><td>injected, extracted and available entropy (3 longs)</td></tr>
+ * </table>
+ * The response type is {@value #RESPONSE_OK}, or {@value #RESPONSE_ERROR} with a UTF-8 message as payload. A frame
+ * longer than {@value #MAX_PAYLOAD_LENGTH} bytes closes the connection. The first request on a connection must be
+ * {@value #REQUEST_AUTH} with the daemon's token. Any other first frame, or a wrong token, closes the connection.
+ * <p>
+ * Trust model: the service listens on the loopback interface by default, which keeps other hosts out, and the token
+ * keeps out other users of the same host. The token lives in a file that only its owner can read (see
+ * {@link #readOrCreateToken(File)}). Whoever can read it can inject and extract, so the pool is exactly as private as
+ * that file. Traffic is not encrypted, which is only acceptable over loopback. Authenticated clients are also trusted
+ * to claim honest entropy, up to 8 bits per injected byte. When they aren't, construct the daemon with
+ * {@code creditInjectedEntropy == false}: injected bytes are still mixed in, but never add available entropy.
+ * <p>
+ * Like the other fronts, it synchronizes on the pool.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-29
+public class EntropyPoolDaemon implements Closeable {
+	public static final int  DEFAULT_PORT       = 7326;
+	public static final File DEFAULT_TOKEN_FILE = new File(System.getProperty("user.home"), ".entropypool.token");
+	public static final int  MAX_PAYLOAD_LENGTH = 1024 * 1024;
+	public static final int  TOKEN_LENGTH       = 32;
+
+	public static final byte REQUEST_INJECT  = 1;
+	public static final byte REQUEST_EXTRACT = 2;
+	public static final byte REQUEST_STATUS  = 3;
+	public static final byte REQUEST_AUTH    = 4;
+	public static final byte RESPONSE_OK     = 0;
+	public static final byte RESPONSE_ERROR  = 1;
+
+	static final int FRAME_HEADER_LENGTH = 5;
+	static final int STATUS_LENGTH       = 24;
+
+	private static final int INITIAL_BUFFER_LENGTH = 4096;
+
+	private final EntropyPool         pool;
+	private final byte[]              token;
+	private final boolean             creditInjectedEntropy;
+	private final Selector            selector;
+	private final ServerSocketChannel serverChannel;
+	private final Thread              selectorThread;
+
+	private final AtomicLong connectionCount = new AtomicLong();
+	private final AtomicLong requestCount    = new AtomicLong();
+
+	private volatile boolean closed;
+
+	/**
+	 * Serves on the default port, with the token in {@link #DEFAULT_TOKEN_FILE}, and credits injected entropy.
+	 */
+	public EntropyPoolDaemon(EntropyPool pool) throws IOException {
+		this(pool, new InetSocketAddress(InetAddress.getLoopbackAddress(), DEFAULT_PORT),
+		     readOrCreateToken(DEFAULT_TOKEN_FILE), true);
+	}
+
+	/**
+	 * Binds to the address and starts serving. Port 0 picks a free port, see {@link #getAddress()}.
+	 *
+	 * @param token                 the token that clients must authenticate with
+	 * @param creditInjectedEntropy whether the entropy claimed by clients is credited, or injected bytes are only
+	 *                              mixed in
+	 */
+	public EntropyPoolDaemon(EntropyPool pool, InetSocketAddress address, byte[] token, boolean creditInjectedEntropy)
+			throws IOException {
+		requireNonNull(pool, "pool == null");
+		requireNonNull(address, "address == null");
+		requireNonNull(token, "token == null");
+		requireThat(token.length == TOKEN_LENGTH, "token.length != " + TOKEN_LENGTH + ": " + token.length);
+
+		this.pool = pool;
+		this.token = token.clone();
+		this.creditInjectedEntropy = creditInjectedEntropy;
+
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.bind(address);
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException ex) {
+			serverChannel.close();
+			selector.close();
+			throw ex;
+		}
+
+		selectorThread = new Thread(this::runSelector, "EntropyPool daemon");
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+
+		Logger.getGlobal().info("Entropy Pool daemon listening on " + getAddress());
+	}
+
+	/**
+	 * Reads the token from {@code tokenFile}, after writing a new random one if the file doesn't exist. A new file is
+	 * only readable and writable by its owner.
+	 */
+	public static byte[] readOrCreateToken(File tokenFile) throws IOException {
+		requireNonNull(tokenFile, "tokenFile == null");
+
+		Path path = tokenFile.toPath();
+		if (!Files.exists(path)) {
+			byte[] token = new byte[TOKEN_LENGTH];
+			new SecureRandom().nextBytes(token);
+			try {
+				if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+					Files.createFile(path, PosixFilePermissions.asFileAttribute(
+							EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+				} else {
+					Files.createFile(path);
+					tokenFile.setReadable(false, false);
+					tokenFile.setReadable(true, true);
+				}
+
+				Files.write(path, token, StandardOpenOption.WRITE);
+				Logger.getGlobal().info("Created Entropy Pool daemon token file " + tokenFile);
+			} catch (FileAlreadyExistsException ignored) {
+				// Another process created it first
+			} finally {
+				Arrays.fill(token, (byte)0);
+			}
+		}
+
+		return readToken(tokenFile);
+	}
+
+	/**
+	 * Reads the token from {@code tokenFile}. Where the file system has POSIX permissions, a file that can be read or
+	 * written by other users than its owner is refused.
+	 */
+	public static byte[] readToken(File tokenFile) throws IOException {
+		requireNonNull(tokenFile, "tokenFile == null");
+
+		Path path = tokenFile.toPath();
+		if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+			Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path);
+			permissions.retainAll(EnumSet.of(PosixFilePermission.GROUP_READ, PosixFilePermission.GROUP_WRITE,
+			                                 PosixFilePermission.OTHERS_READ, PosixFilePermission.OTHERS_WRITE));
+			if (!permissions.isEmpty())
+				throw new IOException("Token file is accessible by other users: " + tokenFile);
+		}
+
+		byte[] token = Files.readAllBytes(path);
+		if (token.length != TOKEN_LENGTH) {
+			Arrays.fill(token, (byte)0);
+			throw new IOException("Token file is not " + TOKEN_LENGTH + " bytes: " + tokenFile);
+		}
+
+		return token;
+	}
+
+	public InetSocketAddress getAddress() throws IOException {
+		return (InetSocketAddress)serverChannel.getLocalAddress();
+	}
+
+	public long getConnectionCount() { return connectionCount.get(); }
+
+	public long getRequestCount() { return requestCount.get(); }
+
+	/**
+	 * Waits until the daemon is closed.
+	 */
+	public void awaitClose() throws InterruptedException {
+		selectorThread.join();
+	}
+
+	/**
+	 * Stops serving and closes all connections. Requests that were already received are not answered.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		selector.wakeup();
+
+		try {
+			selectorThread.join();
+		} catch (InterruptedException ignored) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void runSelector() {
+		try {
+			while (!closed) {
+				selector.select();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					if (!key.isValid())
+						continue;
+
+					try {
+						if (key.isAcceptable())
+							accept();
+						else
+							serve(key);
+					} catch (IOException ex) {
+						Logger.getGlobal().log(Level.FINE, "Closing Entropy Pool daemon connection", ex);
+						closeConnection(key);
+					}
+				}
+			}
+		} catch (IOException | RuntimeException ex) {
+			Logger.getGlobal().log(Level.SEVERE, "Entropy Pool daemon died", ex);
+		} finally {
+			for (SelectionKey key : selector.keys())
+				closeConnection(key);
+
+			try {
+				selector.close();
+			} catch (IOException ex) {
+				Logger.getGlobal().log(Level.WARNING, "Could not close the selector", ex);
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null)
+			return;
+
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ, new Connection());
+		connectionCount.incrementAndGet();
+	}
+
+	private void serve(SelectionKey key) throws IOException {
+		SocketChannel channel    = (SocketChannel)key.channel();
+		Connection    connection = (Connection)key.attachment();
+
+		if (key.isReadable() && channel.read(connection.in) < 0) {
+			closeConnection(key);
+			return;
+		}
+
+		// Answer requests and send until everything is sent or the socket is full
+		while (true) {
+			handleRequests(connection);
+			if (connection.out.position() == 0)
+				break;
+
+			connection.out.flip();
+			channel.write(connection.out);
+			connection.out.compact();
+			if (connection.out.position() > 0)
+				break;
+
+			// Extracted entropy must not linger in the buffer after it was sent
+			Arrays.fill(connection.out.array(), (byte)0);
+		}
+
+		// Stop reading while responses are backed up, so a client can't make the output grow without bounds
+		boolean backedUp = connection.out.position() > 0;
+		key.interestOps(backedUp ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Answers the complete requests in the input, until the output holds more than {@value #MAX_PAYLOAD_LENGTH}
+	 * bytes.
+	 */
+	private void handleRequests(Connection connection) throws IOException {
+		ByteBuffer in = connection.in;
+		in.flip();
+
+		while (in.remaining() >= FRAME_HEADER_LENGTH && connection.out.position() < MAX_PAYLOAD_LENGTH) {
+			int start  = in.position();
+			int length = in.getInt(start + 1);
+			if (length < 0 || length > MAX_PAYLOAD_LENGTH)
+				throw new IOException("Invalid payload length: " + length);
+			if (!connection.authenticated && length != TOKEN_LENGTH)
+				throw new IOException("Connection didn't authenticate");
+
+			if (in.remaining() < FRAME_HEADER_LENGTH + length) {
+				in.compact();
+				connection.in = ensureCapacity(in, FRAME_HEADER_LENGTH + length);
+				return;
+			}
+
+			ByteBuffer payload = in.duplicate();
+			payload.position(start + FRAME_HEADER_LENGTH).limit(start + FRAME_HEADER_LENGTH + length);
+
+			if (connection.authenticated)
+				handleRequest(connection, in.get(start), payload.slice());
+			else
+				authenticate(connection, in.get(start), payload.slice());
+			requestCount.incrementAndGet();
+
+			in.position(start + FRAME_HEADER_LENGTH + length);
+		}
+
+		in.compact();
+	}
+
+	private void authenticate(Connection connection, byte type, ByteBuffer payload) throws IOException {
+		if (type != REQUEST_AUTH)
+			throw new IOException("Connection didn't authenticate");
+
+		byte[] received = new byte[TOKEN_LENGTH];
+		payload.get(received);
+		boolean valid = MessageDigest.isEqual(token, received);
+		Arrays.fill(received, (byte)0);
+
+		if (!valid)
+			throw new IOException("Connection sent a wrong token");
+
+		connection.authenticated = true;
+		connection.respond(RESPONSE_OK, 0);
+	}
+
+	private void handleRequest(Connection connection, byte type, ByteBuffer payload) {
+		try {
+			switch (type) {
+				case REQUEST_INJECT:
+					if (payload.remaining() <= 4)
+						throw new IllegalArgumentException("Inject request without bytes");
+
+					int entropyBits = payload.getInt();
+					if (entropyBits < 0 || entropyBits > payload.remaining() * 8L)
+						throw new IllegalArgumentException("Invalid number of entropy bits: " + entropyBits);
+
+					synchronized (pool) {
+						pool.injectEntropy(payload, creditInjectedEntropy ? entropyBits : 0);
+					}
+
+					connection.respond(RESPONSE_OK, 0);
+					break;
+				case REQUEST_EXTRACT:
+					if (payload.remaining() != 4)
+						throw new IllegalArgumentException("Extract request without length");
+
+					int numBytes = payload.getInt();
+					if (numBytes <= 0 || numBytes > MAX_PAYLOAD_LENGTH)
+						throw new IllegalArgumentException("Invalid number of bytes: " + numBytes);
+
+					// Extract straight into the response. The header is only committed if that succeeds.
+					ByteBuffer target = connection.reserve(numBytes);
+					synchronized (pool) {
+						pool.extractEntropy(target);
+					}
+
+					connection.respond(RESPONSE_OK, numBytes);
+					break;
+				case REQUEST_STATUS:
+					ByteBuffer status = connection.reserve(STATUS_LENGTH);
+					synchronized (pool) {
+						status.putLong(pool.getInjectedEntropy());
+						status.putLong(pool.getExtractedEntropy());
+						status.putLong(pool.getAvailableEntropy());
+					}
+
+					connection.respond(RESPONSE_OK, STATUS_LENGTH);
+					break;
+				case REQUEST_AUTH:
+					throw new IllegalArgumentException("Already authenticated");
+				default:
+					throw new IllegalArgumentException("Unknown request type: " + type);
+			}
+		} catch (RuntimeException ex) {
+			byte[] message = String.valueOf(ex.getMessage()).getBytes(StandardCharsets.UTF_8);
+			connection.reserve(message.length).put(message);
+			connection.respond(RESPONSE_ERROR, message.length);
+		}
+	}
+
+	private static void closeConnection(SelectionKey key) {
+		key.cancel();
+
+		try {
+			key.channel().close();
+		} catch (IOException ex) {
+			Logger.getGlobal().log(Level.FINE, "Could not close an Entropy Pool daemon connection", ex);
+		}
+
+		Object attachment = key.attachment();
+		if (attachment instanceof Connection)
+			Arrays.fill(((Connection)attachment).out.array(), (byte)0);
+	}
+
+	/**
+	 * Returns {@code buffer}, or a larger copy if it's too small. The buffer is in write mode, so the bytes before the
+	 * position are kept.
+	 */
+	private static ByteBuffer ensureCapacity(ByteBuffer buffer, int capacity) {
+		if (buffer.capacity() >= capacity)
+			return buffer;
+
+		ByteBuffer larger = ByteBuffer.allocate(Math.max(capacity, buffer.capacity() * 2));
+		buffer.flip();
+		larger.put(buffer);
+		Arrays.fill(buffer.array(), (byte)0);
+		return larger;
+	}
+
+	private static final class Connection {
+		/** In write mode between requests */
+		ByteBuffer in  = ByteBuffer.allocate(INITIAL_BUFFER_LENGTH);
+		/** In write mode, holding responses that weren't sent yet */
+		ByteBuffer out = ByteBuffer.allocate(INITIAL_BUFFER_LENGTH);
+
+		boolean authenticated;
+
+		/**
+		 * Returns a buffer for a payload of {@code length} bytes, behind room for the frame header. Nothing is sent
+		 * until {@link #respond(byte, int)}.
+		 */
+		ByteBuffer reserve(int length) {
+			out = ensureCapacity(out, out.position() + FRAME_HEADER_LENGTH + length);
+
+			ByteBuffer payload = out.duplicate();
+			payload.position(out.position() + FRAME_HEADER_LENGTH).limit(out.position() + FRAME_HEADER_LENGTH + length);
+			return payload.slice();
+		}
+
+		void respond(byte type, int length) {
+			out = ensureCapacity(out, out.position() + FRAME_HEADER_LENGTH + length);
+
+			int start = out.position();
+			out.put(start, type);
+			out.putInt(start + 1, length);
+			out.position(start + FRAME_HEADER_LENGTH + length);
+		}
+	}
+}
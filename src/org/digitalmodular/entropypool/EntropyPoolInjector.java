@@ -20,7 +20,14 @@
 package org.digitalmodular.entropypool;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.logging.Level;
+import java.util.logging.Logger;
 import static java.util.Objects.requireNonNull;
 
 import org.digitalmodular.utilities.LogTimer;
@@ -36,20 +43,64 @@ public enum EntropyPoolInjector {
 	;
 
 	private static final int MAX_READ_ARRAY_LENGTH = 1024 * 1024;
+	private static final int MAX_MAP_LENGTH        = 64 * 1024 * 1024;
+
+	/** Used when no estimator is given, as documented in the README */
+	static final double DEFAULT_ENTROPY_PER_BYTE = 1;
 
 	public static void injectEntropyFromFileOrDirectory(EntropyPool pool, File fileOrDirectory) throws IOException {
+		injectEntropyFromFileOrDirectory(pool, fileOrDirectory, new FixedRateEstimator(DEFAULT_ENTROPY_PER_BYTE));
+	}
+
+	public static void injectEntropyFromFileOrDirectory(EntropyPool pool, File fileOrDirectory,
+	                                                    EntropyEstimator estimator) throws IOException {
+		injectFileOrDirectory(pool, fileOrDirectory, estimator, null);
+	}
+
+	/**
+	 * Injects the file or the directory tree, skipping files that {@code index} has seen before. Injected files are
+	 * added to the index.
+	 */
+	public static void injectEntropyFromFileOrDirectory(EntropyPool pool, File fileOrDirectory,
+	                                                    EntropyEstimator estimator, InjectedFileIndex index)
+			throws IOException {
+		requireNonNull(index, "index == null");
+
+		injectFileOrDirectory(pool, fileOrDirectory, estimator, index);
+	}
+
+	public static void injectDirectory(EntropyPool pool, File directory) throws IOException {
+		injectDirectory(pool, directory, new FixedRateEstimator(DEFAULT_ENTROPY_PER_BYTE));
+	}
+
+	public static void injectDirectory(EntropyPool pool, File directory, EntropyEstimator estimator)
+			throws IOException {
+		injectDirectory(pool, directory, estimator, null);
+	}
+
+	public static void injectFile(EntropyPool pool, File file) throws IOException {
+		injectFile(pool, file, new FixedRateEstimator(DEFAULT_ENTROPY_PER_BYTE));
+	}
+
+	public static void injectFile(EntropyPool pool, File file, EntropyEstimator estimator) throws IOException {
+		injectFile(pool, file, estimator, null);
+	}
+
+	private static void injectFileOrDirectory(EntropyPool pool, File fileOrDirectory, EntropyEstimator estimator,
+	                                          InjectedFileIndex index) throws IOException {
 		requireNonNull(pool, "pool == null");
 		requireThat(fileOrDirectory.exists(), "fileOrDirectory.exists() == false: " + fileOrDirectory);
 
 		if (fileOrDirectory.isDirectory())
-			injectDirectory(pool, fileOrDirectory);
+			injectDirectory(pool, fileOrDirectory, estimator, index);
 		else if (fileOrDirectory.isFile())
-			injectFile(pool, fileOrDirectory);
+			injectFile(pool, fileOrDirectory, estimator, index);
 		else
 			throw new IllegalArgumentException(fileOrDirectory.toString());
 	}
 
-	public static void injectDirectory(EntropyPool pool, File directory) throws IOException {
+	private static void injectDirectory(EntropyPool pool, File directory, EntropyEstimator estimator,
+	                                    InjectedFileIndex index) throws IOException {
 		requireNonNull(pool, "pool == null");
 		requireThat(directory.exists(), "directory.exists() == false: " + directory);
 
@@ -57,37 +108,137 @@ public enum EntropyPoolInjector {
 		if (files == null)
 			throw new IOException("Directory unreadable:" + directory);
 
-		for (File file : files)
-			injectEntropyFromFileOrDirectory(pool, file);
+		// Collapse the mix after every file into one for the whole directory
+		pool.beginBatch();
+		try {
+			for (File file : files)
+				injectFileOrDirectory(pool, file, estimator, index);
+		} finally {
+			pool.commitBatch();
+		}
 	}
 
-	public static void injectFile(EntropyPool pool, File file) throws IOException {
+	/**
+	 * Injects a file, crediting the entropy estimated by {@code estimator} while the file streams through it. The
+	 * estimator is reset first, and every mapping window is credited with the growth of the estimate.
+	 * <p>
+	 * When an index is given, an unchanged file is skipped without reading it. Other files are digested while they're
+	 * injected, and added to the index.
+	 */
+	private static void injectFile(EntropyPool pool, File file, EntropyEstimator estimator, InjectedFileIndex index)
+			throws IOException {
 		requireNonNull(pool, "pool == null");
+		requireNonNull(estimator, "estimator == null");
 		requireThat(file.exists(), "file.exists() == false: " + file);
 		requireThat(file.canRead(), "file.canRead() == false: " + file);
 
+		String path         = file.getAbsolutePath();
+		long   lastModified = file.lastModified();
+		if (index != null && index.isUnchanged(path, file.length(), lastModified)) {
+			if (Logger.getGlobal().isLoggable(Level.FINE))
+				Logger.getGlobal().fine("Skipping file that was injected before: " + file);
+			return;
+		}
+
 		LogTimer.start(Level.INFO, "Injecting entropy into the Entropy Pool from file " + file);
 
-		long remaining = file.length();
+		estimator.reset();
+		long credited = 0;
 
-		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
-			byte[] bytesForPool = null;
-			while (remaining > 0) {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
 
-				int size = remaining > MAX_READ_ARRAY_LENGTH ? MAX_READ_ARRAY_LENGTH : (int)remaining;
+			InjectedFileIndex.ContentDigest digest = index != null ? new InjectedFileIndex.ContentDigest(size) : null;
 
-				if (bytesForPool == null || bytesForPool.length != size) bytesForPool = new byte[size];
+			// XOR straight from the page cache, one mapping window at a time
+			for (long position = 0; position < size; position += MAX_MAP_LENGTH) {
+				int length = (int)Math.min(size - position, MAX_MAP_LENGTH);
 
-				in.readFully(bytesForPool);
+				MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
 
-				pool.injectEntropy(bytesForPool, bytesForPool.length);
+				if (digest != null)
+					digest.update(mapping);
 
-				remaining -= size;
+				credited += injectEstimated(pool, mapping, estimator, credited);
 			}
+
+			if (index != null)
+				index.add(path, size, lastModified, digest.getDigest());
 		}
 
 		pool.mix();
 
+		if (Logger.getGlobal().isLoggable(Level.FINE))
+			Logger.getGlobal().fine("Credited " + credited + " bits of entropy for " + file);
 		LogTimer.finishAndLog(Level.FINE, "Injected file into the Entropy Pool in {0} seconds");
 	}
+
+	/**
+	 * Injects everything that can be read from the channel, assuming 1 bit of entropy per byte. The channel is not
+	 * closed.
+	 *
+	 * @throws IllegalArgumentException when the channel is in non-blocking mode
+	 */
+	public static void injectChannel(EntropyPool pool, ReadableByteChannel channel) throws IOException {
+		injectChannel(pool, channel, new FixedRateEstimator(DEFAULT_ENTROPY_PER_BYTE));
+	}
+
+	/**
+	 * Injects everything that can be read from the channel, crediting the entropy estimated by {@code estimator}.
+	 * The channel is not closed, and the staging buffer is zeroed afterwards.
+	 *
+	 * @throws IllegalArgumentException when the channel is in non-blocking mode
+	 */
+	public static void injectChannel(EntropyPool pool, ReadableByteChannel channel, EntropyEstimator estimator)
+			throws IOException {
+		requireNonNull(pool, "pool == null");
+		requireNonNull(channel, "channel == null");
+		requireNonNull(estimator, "estimator == null");
+		// A non-blocking channel can return 0 bytes indefinitely, which would spin here
+		requireThat(!(channel instanceof SelectableChannel) || ((SelectableChannel)channel).isBlocking(),
+		            "channel is non-blocking: " + channel);
+
+		DirectPoolStorage staging      = new DirectPoolStorage(MAX_READ_ARRAY_LENGTH);
+		ByteBuffer        bytesForPool = staging.buffer();
+
+		estimator.reset();
+		long credited = 0;
+
+		try {
+			while (channel.read(bytesForPool) >= 0) {
+				if (bytesForPool.hasRemaining())
+					continue;
+
+				bytesForPool.flip();
+				credited += injectEstimated(pool, bytesForPool, estimator, credited);
+				bytesForPool.clear();
+			}
+
+			bytesForPool.flip();
+			if (bytesForPool.hasRemaining())
+				injectEstimated(pool, bytesForPool, estimator, credited);
+		} finally {
+			staging.close();
+		}
+
+		pool.mix();
+	}
+
+	private static int injectEstimated(EntropyPool pool, ByteBuffer bytes, EntropyEstimator estimator,
+	                                   long credited) {
+		estimator.update(bytes);
+
+		int entropyBits = getEntropyBitsToCredit(estimator, credited, bytes.remaining());
+
+		pool.injectEntropy(bytes, entropyBits);
+		return entropyBits;
+	}
+
+	/**
+	 * Returns the growth of the estimate since {@code credited} bits were credited for the same stream, capped at the
+	 * size of the chunk being injected.
+	 */
+	static int getEntropyBitsToCredit(EntropyEstimator estimator, long credited, int length) {
+		return (int)Math.max(0, Math.min(length * 8L, estimator.getEntropyBits() - credited));
+	}
 }
@@ -48,7 +48,11 @@ public enum EntropyPoolLoader {
 		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
 			Version version = readHeader(in);
 
-			EntropyPool pool = readPool(in, version);
+			EntropyPool pool;
+			if (version.getMajor() == EntropyPool2FileV3.FORMAT_VERSION.getMajor())
+				pool = EntropyPool2FileV3.loadFromFile(file, HeapPoolStorage::new);
+			else
+				pool = readPool(in, version);
 
 			if (Logger.getGlobal().isLoggable(Level.FINE))
 				Logger.getGlobal().finer("Loaded pool: " + pool);
@@ -82,12 +86,14 @@ public enum EntropyPoolLoader {
 		EntropyPool pool;
 
 		if (version.getMajor() == 2) {
-			pool = EntropyPool2Loader.readFrom(in);
+			pool = EntropyPool2Loader.readFrom(in, version);
 		} else {
 			if (version.getMajor() < 2)
 				throw new IOException("Versions below 2 not supported: " + version);
+			else if (version.getMajor() == EncryptedEntropyPoolFile.FORMAT_VERSION.getMajor())
+				throw new IOException("Encrypted files need EncryptedEntropyPoolFile.loadFromFile(): " + version);
 			else
-				throw new IOException("Versions above 2 not supported: " + version);
+				throw new IOException("Versions above 3 not supported: " + version);
 		}
 
 		if (in.available() > 0)
@@ -0,0 +1,254 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import static java.util.Objects.requireNonNull;
+
+import static org.digitalmodular.utilities.Verifier.requireThat;
+
+/**
+ * Saves a pool in the background, so a long-running service doesn't have to save after every operation.
+ * <p>
+ * A saver thread watches {@link EntropyPool2#getModifyCount()}. Once the pool is dirty, it's saved when the number of
+ * modifications reaches the dirty threshold, or when the oldest unsaved modification is older than the maximum delay,
+ * whichever comes first. All modifications in between are coalesced into that one save. {@link #flush()} saves
+ * immediately and {@link #close()} stops the thread and flushes, so nothing is lost on a clean shutdown.
+ * <p>
+ * After a crash, the pool file is older than the pool that served the last extractions, so a pool loaded from it would
+ * serve the same bytes again and count their entropy twice. A marker file next to the pool file exists while a
+ * persister is open. When it's found at construction, the previous run didn't close its persister, and the pool is
+ * reseeded, mixed and stripped of its available entropy before it's used.
+ * <p>
+ * Like the other fronts, this synchronizes on the pool, so everyone else that uses the pool must do the same. The
+ * lock is only held while a {@link PoolSnapshot} is captured, not while it's written. A failed background save is
+ * logged and retried on the next check.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-27
+public class EntropyPoolPersister implements Closeable {
+	public static final long   DEFAULT_MAX_DELAY_MILLIS = 30_000;
+	public static final int    DEFAULT_DIRTY_THRESHOLD  = 10_000;
+	public static final String OPEN_MARKER_SUFFIX       = ".open";
+
+	private static final long CHECK_INTERVAL_MILLIS = 100;
+
+	private final EntropyPool2 pool;
+	private final File         poolFile;
+	private final File         bakFile;
+	private final File         tempFile;
+	private final File         openMarkerFile;
+	private final long         maxDelayMillis;
+	private final int          dirtyThreshold;
+	private final Object       lock     = new Object();
+	private final Object       saveLock = new Object();
+	private final Thread       saverThread;
+
+	// Guarded by saveLock
+	private final PoolSnapshot snapshot = new PoolSnapshot();
+
+	// Guarded by lock
+	private long    savedModifyCount;
+	private long    dirtySinceMillis;
+	private long    saveCount;
+	private boolean closed;
+
+	public EntropyPoolPersister(EntropyPool2 pool, File poolFile, File bakFile, File tempFile) throws IOException {
+		this(pool, poolFile, bakFile, tempFile, DEFAULT_MAX_DELAY_MILLIS, DEFAULT_DIRTY_THRESHOLD);
+	}
+
+	/**
+	 * The pool is assumed to be in the same state as the pool file, i.e. freshly loaded or saved. If the open marker
+	 * of the pool file exists, the pool is recovered from an unclean shutdown first.
+	 *
+	 * @param maxDelayMillis the maximum time a modification stays unsaved (give or take one check interval)
+	 * @param dirtyThreshold the number of modifications that triggers a save before the delay has passed
+	 */
+	public EntropyPoolPersister(EntropyPool2 pool, File poolFile, File bakFile, File tempFile, long maxDelayMillis,
+	                            int dirtyThreshold) throws IOException {
+		requireNonNull(pool, "pool == null");
+		requireNonNull(poolFile, "poolFile == null");
+		requireNonNull(bakFile, "bakFile == null");
+		requireNonNull(tempFile, "tempFile == null");
+		requireThat(maxDelayMillis > 0, "maxDelayMillis <= 0: " + maxDelayMillis);
+		requireThat(dirtyThreshold > 0, "dirtyThreshold <= 0: " + dirtyThreshold);
+
+		this.pool = pool;
+		this.poolFile = poolFile;
+		this.bakFile = bakFile;
+		this.tempFile = tempFile;
+		this.maxDelayMillis = maxDelayMillis;
+		this.dirtyThreshold = dirtyThreshold;
+		openMarkerFile = new File(poolFile.getPath() + OPEN_MARKER_SUFFIX);
+
+		synchronized (pool) {
+			savedModifyCount = pool.getModifyCount();
+
+			// Recovering leaves the pool dirty, so the recovered state is saved like any other modification
+			if (openMarkerFile.exists()) {
+				Logger.getGlobal().warning("Entropy Pool wasn't saved on shutdown, discarding available entropy: " +
+				                           poolFile);
+				pool.recoverFromUncleanShutdown();
+			} else {
+				Files.createFile(openMarkerFile.toPath());
+			}
+		}
+
+		saverThread = new Thread(this::runSaver, "EntropyPool saver");
+		saverThread.setDaemon(true);
+		saverThread.start();
+	}
+
+	public EntropyPool2 getPool() { return pool; }
+
+	public long getMaxDelayMillis() { return maxDelayMillis; }
+
+	public int getDirtyThreshold() { return dirtyThreshold; }
+
+	public boolean isDirty() {
+		long modifyCount;
+		synchronized (pool) {
+			modifyCount = pool.getModifyCount();
+		}
+
+		synchronized (lock) {
+			return modifyCount != savedModifyCount;
+		}
+	}
+
+	public long getSaveCount() {
+		synchronized (lock) {
+			return saveCount;
+		}
+	}
+
+	/**
+	 * Saves the pool now if it has unsaved modifications, and waits for it to complete.
+	 */
+	public void flush() throws IOException {
+		saveIfDirty();
+	}
+
+	/**
+	 * Stops the saver thread and flushes. The open marker is only removed once everything was saved.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (lock) {
+			closed = true;
+			lock.notifyAll();
+		}
+
+		try {
+			saverThread.join();
+		} catch (InterruptedException ignored) {
+			Thread.currentThread().interrupt();
+		}
+
+		flush();
+
+		Files.deleteIfExists(openMarkerFile.toPath());
+	}
+
+	private void runSaver() {
+		try {
+			while (true) {
+				synchronized (lock) {
+					if (!closed)
+						lock.wait(CHECK_INTERVAL_MILLIS);
+
+					if (closed)
+						return;
+				}
+
+				if (isSaveDue()) {
+					try {
+						saveIfDirty();
+					} catch (IOException ex) {
+						Logger.getGlobal().log(Level.SEVERE, "Could not save the Entropy Pool: " + poolFile, ex);
+					}
+				}
+			}
+		} catch (InterruptedException ignored) {
+		} catch (RuntimeException ex) {
+			Logger.getGlobal().log(Level.SEVERE, "Entropy Pool saver thread died", ex);
+		}
+	}
+
+	private boolean isSaveDue() {
+		long modifyCount;
+		synchronized (pool) {
+			modifyCount = pool.getModifyCount();
+		}
+
+		long now = System.currentTimeMillis();
+		synchronized (lock) {
+			if (modifyCount == savedModifyCount) {
+				dirtySinceMillis = 0;
+				return false;
+			}
+
+			if (dirtySinceMillis == 0)
+				dirtySinceMillis = now;
+
+			return modifyCount - savedModifyCount >= dirtyThreshold || now - dirtySinceMillis >= maxDelayMillis;
+		}
+	}
+
+	private void saveIfDirty() throws IOException {
+		synchronized (saveLock) {
+			synchronized (pool) {
+				long modifyCount = pool.getModifyCount();
+				synchronized (lock) {
+					if (modifyCount == savedModifyCount)
+						return;
+				}
+
+				snapshot.capture(pool);
+			}
+
+			try {
+				snapshot.saveToFile(poolFile, bakFile, tempFile);
+			} finally {
+				snapshot.clear();
+			}
+
+			synchronized (lock) {
+				savedModifyCount = snapshot.getModifyCount();
+				dirtySinceMillis = 0;
+				saveCount++;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[file=" + poolFile + ", dirty=" + isDirty() +
+		       ", saveCount=" + getSaveCount() + ']';
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.nio.ByteBuffer;
+
+import static org.digitalmodular.utilities.Verifier.requireThat;
+
+/**
+ * Credits a fixed number of bits per byte, regardless of content.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-18
+public class FixedRateEstimator implements EntropyEstimator {
+	private final double entropyPerByte;
+
+	private long numBytes;
+
+	public FixedRateEstimator(double entropyPerByte) {
+		requireThat(entropyPerByte >= 0 && entropyPerByte <= 8,
+		            "entropyPerByte not in range [0, 8]: " + entropyPerByte);
+
+		this.entropyPerByte = entropyPerByte;
+	}
+
+	@Override
+	public void reset() {
+		numBytes = 0;
+	}
+
+	@Override
+	public void update(ByteBuffer bytes, int index, int length) {
+		numBytes += length;
+	}
+
+	@Override
+	public long getNumBytes() { return numBytes; }
+
+	@Override
+	public double getEntropyPerByte() { return entropyPerByte; }
+}
@@ -0,0 +1,60 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.digitalmodular.utilities.Verifier.requireThat;
+
+/**
+ * Pool storage in a {@code byte[]} on the heap. This is the default.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-22
+public class HeapPoolStorage implements PoolStorage {
+	private final byte[]     array;
+	private final ByteBuffer buffer;
+
+	public HeapPoolStorage(int length) {
+		requireThat(length > 0, "length <= 0: " + length);
+
+		array = new byte[length];
+		buffer = ByteBuffer.wrap(array).order(ByteOrder.nativeOrder());
+	}
+
+	@Override
+	public int length() { return array.length; }
+
+	@Override
+	public ByteBuffer buffer() { return buffer; }
+
+	@Override
+	public void close() {
+		Arrays.fill(array, (byte)0);
+	}
+
+	@Override
+	public String toString() { return getClass().getSimpleName() + "[length=" + array.length + ']'; }
+}
@@ -0,0 +1,319 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import static java.util.Objects.requireNonNull;
+
+import org.digitalmodular.utilities.LogTimer;
+import org.digitalmodular.utilities.io.InvalidHeaderException;
+import static org.digitalmodular.utilities.Verifier.requireState;
+import static org.digitalmodular.utilities.Verifier.requireThat;
+
+/**
+ * Remembers which files have already been injected, so rescanning a directory doesn't pay for reading and mixing the
+ * same data again, nor credit its entropy twice.
+ * <p>
+ * Files are recognized by path, size and modification date without reading them. Every entry also holds a fast
+ * (non-cryptographic) digest of the content, computed while the file was injected, so {@link #containsContent(long)}
+ * can tell whether the same content was injected under another name. The least recently seen entries are evicted
+ * when the index is full.
+ * <p>
+ * The file format is a small header followed by fixed-length records in LRU order, so millions of entries load with a
+ * single sequential read.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-19
+public class InjectedFileIndex {
+	public static final int DEFAULT_MAX_ENTRIES = 1 << 20;
+
+	private static final int MAGIC         = 0x45504949; // "EPII"
+	private static final int REVISION      = 1;
+	private static final int HEADER_LENGTH = 12;
+	private static final int RECORD_LENGTH = 32;
+
+	private static final int  IO_BUFFER_LENGTH = 1024 * 1024;
+	private static final long DIGEST_PRIME     = 0x9E3779B97F4A7C15L;
+
+	private final int maxEntries;
+
+	/** Keyed on path hash, in access order. */
+	private final LinkedHashMap<Long, Entry> entries;
+	/** Content digest to the number of entries having that digest. */
+	private final Map<Long, Integer>         digests = new HashMap<>();
+
+	private boolean modified = false;
+
+	public InjectedFileIndex() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	public InjectedFileIndex(int maxEntries) {
+		requireThat(maxEntries > 0, "maxEntries <= 0: " + maxEntries);
+
+		this.maxEntries = maxEntries;
+
+		entries = new LinkedHashMap<>(Math.min(maxEntries, 1024), 0.75f, true);
+	}
+
+	/**
+	 * Returns the index file that belongs to the specified pool file. It's stored alongside the pool file.
+	 */
+	public static File getIndexFileFor(File poolFile) {
+		return new File(poolFile.getPath() + ".idx");
+	}
+
+	public static InjectedFileIndex loadFromFile(File indexFile) throws IOException {
+		return loadFromFile(indexFile, DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * Loads the index, or returns an empty index when the file doesn't exist yet.
+	 */
+	public static InjectedFileIndex loadFromFile(File indexFile, int maxEntries) throws IOException {
+		requireNonNull(indexFile, "indexFile == null");
+
+		InjectedFileIndex index = new InjectedFileIndex(maxEntries);
+		if (!indexFile.exists())
+			return index;
+
+		LogTimer.start(Level.INFO, "Loading inject index file " + indexFile);
+
+		try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+			long fileLength = channel.size();
+			if (fileLength < HEADER_LENGTH)
+				throw new InvalidHeaderException("File is not an inject index file: " + indexFile);
+
+			MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
+
+			if (mapping.getInt() != MAGIC)
+				throw new InvalidHeaderException("File is not an inject index file: " + indexFile);
+			int revision = mapping.getInt();
+			if (revision != REVISION)
+				throw new InvalidHeaderException("Unsupported inject index revision: " + revision);
+
+			int numEntries = mapping.getInt();
+			if (mapping.remaining() != (long)numEntries * RECORD_LENGTH)
+				throw new IOException("Inject index file truncated: " + indexFile);
+
+			// Records are stored least recently used first, so re-adding them restores the LRU order
+			for (int i = 0; i < numEntries; i++) {
+				long pathHash     = mapping.getLong();
+				long size         = mapping.getLong();
+				long lastModified = mapping.getLong();
+				long digest       = mapping.getLong();
+				index.put(pathHash, new Entry(size, lastModified, digest));
+			}
+		}
+
+		index.modified = false;
+
+		LogTimer.finishAndLog(Level.FINE, "Loaded " + index.size() + " inject index entries in {0} seconds");
+		return index;
+	}
+
+	/**
+	 * Writes the index to a temporary file and moves it over the index file, so a crash never leaves a truncated
+	 * index behind. Does nothing when nothing changed since loading or the previous save.
+	 */
+	public synchronized void saveToFile(File indexFile) throws IOException {
+		requireNonNull(indexFile, "indexFile == null");
+
+		if (!modified && indexFile.exists())
+			return;
+
+		LogTimer.start(Level.INFO, "Saving inject index file " + indexFile);
+
+		File tempFile = new File(indexFile.getPath() + ".tmp");
+
+		try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE,
+		                                            StandardOpenOption.CREATE,
+		                                            StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_LENGTH);
+			buffer.putInt(MAGIC);
+			buffer.putInt(REVISION);
+			buffer.putInt(entries.size());
+
+			for (Map.Entry<Long, Entry> mapEntry : entries.entrySet()) {
+				if (buffer.remaining() < RECORD_LENGTH)
+					writeFully(channel, buffer);
+
+				Entry entry = mapEntry.getValue();
+				buffer.putLong(mapEntry.getKey());
+				buffer.putLong(entry.size);
+				buffer.putLong(entry.lastModified);
+				buffer.putLong(entry.digest);
+			}
+
+			writeFully(channel, buffer);
+		}
+
+		Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+		           StandardCopyOption.ATOMIC_MOVE);
+
+		modified = false;
+
+		LogTimer.finishAndLog(Level.FINE, "Saved the inject index in {0} seconds");
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * Returns whether a file with this path, size and modification date was injected before. A hit counts as a use
+	 * for LRU eviction.
+	 */
+	public synchronized boolean isUnchanged(String path, long size, long lastModified) {
+		Entry entry = entries.get(hashPath(path));
+		return entry != null && entry.size == size && entry.lastModified == lastModified;
+	}
+
+	/**
+	 * Returns whether a file with this content digest was injected before, under any path.
+	 */
+	public synchronized boolean containsContent(long digest) {
+		return digests.containsKey(digest);
+	}
+
+	public synchronized void add(String path, long size, long lastModified, long digest) {
+		put(hashPath(path), new Entry(size, lastModified, digest));
+	}
+
+	private void put(long pathHash, Entry entry) {
+		Entry previous = entries.put(pathHash, entry);
+		if (previous != null)
+			releaseDigest(previous.digest);
+
+		digests.merge(entry.digest, 1, Integer::sum);
+
+		if (entries.size() > maxEntries) {
+			Iterator<Entry> iterator = entries.values().iterator();
+			releaseDigest(iterator.next().digest);
+			iterator.remove();
+		}
+
+		modified = true;
+	}
+
+	private void releaseDigest(long digest) {
+		digests.computeIfPresent(digest, (key, count) -> count > 1 ? count - 1 : null);
+	}
+
+	public synchronized int size() { return entries.size(); }
+
+	public int getMaxEntries() { return maxEntries; }
+
+	/**
+	 * Continues a digest over the remaining bytes of the buffer, a word at a time. The position is not changed.
+	 */
+	private static long digest(long digest, ByteBuffer bytes) {
+		ByteBuffer words = bytes.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+		int i   = words.position();
+		int end = words.limit();
+		for (; i <= end - 8; i += 8)
+			digest = Long.rotateLeft((digest ^ words.getLong(i)) * DIGEST_PRIME, 31);
+		for (; i < end; i++)
+			digest = Long.rotateLeft((digest ^ (words.get(i) & 0xFF)) * DIGEST_PRIME, 31);
+
+		return digest;
+	}
+
+	private static long hashPath(String path) {
+		long hash = 0xCBF29CE484222325L; // 64-bit FNV-1a
+		for (int i = 0; i < path.length(); i++)
+			hash = (hash ^ path.charAt(i)) * 0x100000001B3L;
+		return finish(hash);
+	}
+
+	/** Avalanches the last words into all bits (MurmurHash3 finalizer). */
+	private static long finish(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xFF51AFD7ED558CCDL;
+		hash ^= hash >>> 33;
+		hash *= 0xC4CEB9FE1A85EC53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return getClass().getSimpleName() + "[size=" + entries.size() + ", maxEntries=" + maxEntries + ']';
+	}
+
+	/**
+	 * Digests the content of a file while it's read, in order. The size is part of the digest. Every update but the
+	 * last must be a multiple of 8 bytes long, so the digest doesn't depend on how the content was split up.
+	 */
+	public static final class ContentDigest {
+		private long    digest;
+		private boolean hasTail = false;
+
+		public ContentDigest(long size) {
+			requireThat(size >= 0, "size < 0: " + size);
+
+			digest = size * DIGEST_PRIME;
+		}
+
+		/**
+		 * Continues the digest over the remaining bytes of the buffer. The position is not changed.
+		 */
+		public void update(ByteBuffer bytes) {
+			requireState(!hasTail, "An update that wasn't a multiple of 8 bytes long wasn't the last one");
+
+			digest = digest(digest, bytes);
+			hasTail = bytes.remaining() % 8 != 0;
+		}
+
+		public long getDigest() { return finish(digest); }
+	}
+
+	private static final class Entry {
+		final long size;
+		final long lastModified;
+		final long digest;
+
+		Entry(long size, long lastModified, long digest) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.digest = digest;
+		}
+	}
+}
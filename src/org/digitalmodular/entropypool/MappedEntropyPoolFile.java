@@ -0,0 +1,309 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import static java.util.Objects.requireNonNull;
+import javax.crypto.NoSuchPaddingException;
+
+import org.digitalmodular.utilities.LogTimer;
+import org.digitalmodular.utilities.container.Version;
+import org.digitalmodular.utilities.io.InvalidHeaderException;
+import static org.digitalmodular.utilities.Verifier.requireThat;
+
+/**
+ * A pool file that holds the pool bytes in a memory mapping, so they're updated in place instead of being rewritten
+ * through a temporary file on every save.
+ * <p>
+ * The file starts with two header slots, followed by the pool bytes at a page-aligned offset. A header slot holds the
+ * same metadata as a regular pool file, a sequence number and a CRC32. A {@link #checkpoint()} flushes the dirty
+ * pages of the pool bytes, then writes the header to the slot that's not current and flushes that. A crash therefore
+ * always leaves at least one intact header, and opening picks the intact one with the highest sequence number.
+ * <p>
+ * After a crash the pool bytes may be newer than the header. Opening mixes the pool once, so they can never reproduce
+ * earlier output. The entropy counters may be older too, and then entropy that was handed out after the last
+ * checkpoint would be available again. Every checkpoint therefore marks the file as open, and only {@link #close()}
+ * marks it closed. When opening finds a file that wasn't closed, all its available entropy counts as extracted.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-23
+public class MappedEntropyPoolFile implements Closeable {
+	private static final int SLOT_LENGTH        = 4096;
+	private static final int NUM_SLOTS          = 2;
+	private static final int BODY_OFFSET        = SLOT_LENGTH * NUM_SLOTS;
+	/** CRC32, payload length, sequence number and flags */
+	private static final int SLOT_HEADER_LENGTH = 20;
+	private static final int FLAG_OPEN          = 1;
+
+	private final File             file;
+	private final FileChannel      channel;
+	private final MappedByteBuffer body;
+	private final EntropyPool2     pool;
+
+	// Guarded by pool
+	private long sequence;
+	private int  currentSlot;
+
+	private MappedEntropyPoolFile(File file, FileChannel channel, MappedByteBuffer body, EntropyPool2 pool,
+	                              long sequence, int currentSlot) {
+		this.file = file;
+		this.channel = channel;
+		this.body = body;
+		this.pool = pool;
+		this.sequence = sequence;
+		this.currentSlot = currentSlot;
+	}
+
+	/**
+	 * Creates a new mapped pool file with a fresh pool. The file must not exist yet.
+	 */
+	public static MappedEntropyPoolFile create(File file, int size, int rehashStripes)
+			throws IOException, NoSuchAlgorithmException, NoSuchPaddingException {
+		requireNonNull(file, "file == null");
+		requireThat(!file.exists(), "file.exists() == true: " + file);
+		requireThat(size > 0, "size <= 0: " + size);
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+		                                       StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			MappedByteBuffer body = mapBody(channel, size);
+
+			EntropyPool2 pool = new EntropyPool2(new MappedPoolStorage(body), rehashStripes);
+
+			// Write both slots, so neither looks damaged
+			MappedEntropyPoolFile poolFile = new MappedEntropyPoolFile(file, channel, body, pool, 0, 1);
+			poolFile.checkpoint();
+			poolFile.checkpoint();
+			return poolFile;
+		} catch (IOException | RuntimeException | NoSuchAlgorithmException | NoSuchPaddingException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	public static MappedEntropyPoolFile open(File file) throws IOException {
+		requireNonNull(file, "file == null");
+		requireThat(file.isFile(), "file.isFile() == false: " + file);
+		requireThat(file.canRead(), "file.canRead() == false: " + file);
+		requireThat(file.canWrite(), "file.canWrite() == false: " + file);
+
+		LogTimer.start(Level.INFO, "Opening mapped Entropy Pool file " + file);
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			int     currentSlot = -1;
+			long    sequence    = -1;
+			boolean wasOpen     = false;
+			byte[]  payload     = null;
+			for (int slot = 0; slot < NUM_SLOTS; slot++) {
+				ByteBuffer slotBuffer = readSlot(channel, slot);
+				if (slotBuffer == null) {
+					Logger.getGlobal().warning("Header slot " + slot + " is damaged in " + file);
+					continue;
+				}
+
+				long slotSequence = slotBuffer.getLong(8);
+				if (slotSequence > sequence) {
+					sequence = slotSequence;
+					currentSlot = slot;
+					wasOpen = (slotBuffer.getInt(16) & FLAG_OPEN) != 0;
+					payload = new byte[slotBuffer.getInt(4)];
+					slotBuffer.position(SLOT_HEADER_LENGTH);
+					slotBuffer.get(payload);
+				}
+			}
+
+			if (payload == null)
+				throw new InvalidHeaderException("No intact header in mapped Entropy Pool file: " + file);
+
+			EntropyPool2       pool;
+			MappedByteBuffer[] body = new MappedByteBuffer[1];
+			try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+				Version version = EntropyPoolLoader.readHeader(in);
+
+				pool = EntropyPool2Loader.readFromWithStorage(in, version, length -> {
+					if (channel.size() != BODY_OFFSET + (long)length)
+						throw new IOException("Mapped Entropy Pool file has the wrong size: " + file);
+
+					body[0] = mapBody(channel, length);
+					return new MappedPoolStorage(body[0]);
+				});
+			}
+
+			MappedEntropyPoolFile poolFile = new MappedEntropyPoolFile(file, channel, body[0], pool, sequence,
+			                                                           currentSlot);
+
+			if (wasOpen) {
+				Logger.getGlobal().warning("Entropy Pool file wasn't closed, discarding available entropy: " + file);
+				pool.discardAvailableEntropy();
+			}
+
+			// The pool bytes may have been flushed after the last header, so never continue from them as-is
+			pool.mixNow();
+
+			// Mark the file as open, so a crash from here on is detected
+			poolFile.checkpoint();
+
+			LogTimer.finishAndLog(Level.FINE, "Opened the mapped Entropy Pool in {0} seconds");
+			return poolFile;
+		} catch (IOException | RuntimeException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	private static MappedByteBuffer mapBody(FileChannel channel, int size) throws IOException {
+		MappedByteBuffer body = channel.map(FileChannel.MapMode.READ_WRITE, BODY_OFFSET, size);
+		body.order(ByteOrder.nativeOrder());
+		return body;
+	}
+
+	/**
+	 * @return the slot with the payload length at index 4, the sequence number at index 8 and the flags at index 16, or
+	 * {@code null} if the slot is damaged
+	 */
+	private static ByteBuffer readSlot(FileChannel channel, int slot) throws IOException {
+		ByteBuffer slotBuffer = ByteBuffer.allocate(SLOT_LENGTH);
+		while (slotBuffer.hasRemaining()) {
+			if (channel.read(slotBuffer, slot * SLOT_LENGTH + slotBuffer.position()) < 0)
+				return null;
+		}
+
+		int length = slotBuffer.getInt(4);
+		if (length < 0 || length > SLOT_LENGTH - SLOT_HEADER_LENGTH)
+			return null;
+
+		CRC32 crc = new CRC32();
+		crc.update(slotBuffer.array(), 4, SLOT_HEADER_LENGTH - 4 + length);
+		if ((int)crc.getValue() != slotBuffer.getInt(0))
+			return null;
+
+		return slotBuffer;
+	}
+
+	public EntropyPool2 getPool() { return pool; }
+
+	public File getFile() { return file; }
+
+	public long getCheckpointSequence() {
+		synchronized (pool) {
+			return sequence;
+		}
+	}
+
+	/**
+	 * Makes the current state durable. Only the dirty pages of the pool and one header slot are written.
+	 */
+	public void checkpoint() throws IOException {
+		writeCheckpoint(FLAG_OPEN);
+	}
+
+	private void writeCheckpoint(int flags) throws IOException {
+		synchronized (pool) {
+			LogTimer.start();
+
+			ByteArrayOutputStream payload = new ByteArrayOutputStream(SLOT_LENGTH);
+			try (DataOutputStream out = new DataOutputStream(payload)) {
+				EntropyPool2Saver.writeHeader(out);
+				EntropyPool2Saver.writeMetadata(pool, out);
+				out.writeInt(pool.storage().length());
+			}
+
+			if (payload.size() > SLOT_LENGTH - SLOT_HEADER_LENGTH)
+				throw new IllegalStateException("Pool metadata doesn't fit in a header slot: " + payload.size());
+
+			body.force();
+
+			int        slot       = 1 - currentSlot;
+			ByteBuffer slotBuffer = ByteBuffer.allocate(SLOT_LENGTH);
+			slotBuffer.putInt(0);
+			slotBuffer.putInt(payload.size());
+			slotBuffer.putLong(sequence + 1);
+			slotBuffer.putInt(flags);
+			slotBuffer.put(payload.toByteArray());
+
+			CRC32 crc = new CRC32();
+			crc.update(slotBuffer.array(), 4, slotBuffer.position() - 4);
+			slotBuffer.putInt(0, (int)crc.getValue());
+
+			slotBuffer.clear();
+			while (slotBuffer.hasRemaining())
+				channel.write(slotBuffer, slot * SLOT_LENGTH + slotBuffer.position());
+			channel.force(false);
+
+			sequence++;
+			currentSlot = slot;
+
+			LogTimer.finishAndLog(Level.FINE, "Checkpointed the mapped Entropy Pool in {0} seconds");
+		}
+	}
+
+	/**
+	 * Checkpoints, marking the file as closed, and closes the file. The mapping itself is released when it's garbage
+	 * collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			writeCheckpoint(0);
+		} finally {
+			channel.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[file=" + file + ", sequence=" + getCheckpointSequence() + ']';
+	}
+
+	private static final class MappedPoolStorage implements PoolStorage {
+		private final MappedByteBuffer buffer;
+
+		MappedPoolStorage(MappedByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int length() { return buffer.capacity(); }
+
+		@Override
+		public ByteBuffer buffer() { return buffer; }
+
+		/**
+		 * Flushes the pool bytes. They're persistent, so they're not zeroed.
+		 */
+		@Override
+		public void close() {
+			buffer.force();
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The Markov estimate of NIST SP 800-90B (section 6.3.3), over the bits of the data (most significant bit first):
+ * the probability of the most likely 128-bit sequence under a first-order Markov model.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-18
+public class MarkovEstimator implements EntropyEstimator {
+	private static final int SEQUENCE_LENGTH = 128;
+
+	/** For every byte value, the counts of the transitions 00, 01, 10 and 11 between its own bits. */
+	private static final byte[] TRANSITIONS = new byte[256 * 4];
+
+	static {
+		for (int value = 0; value < 256; value++)
+			for (int shift = 7; shift > 0; shift--)
+				TRANSITIONS[value * 4 + ((value >>> (shift - 1)) & 3)]++;
+	}
+
+	private final long[] transitionCounts = new long[4];
+
+	private long numOnes;
+	private int  lastBit;
+	private long numBytes;
+
+	@Override
+	public void reset() {
+		for (int i = 0; i < 4; i++)
+			transitionCounts[i] = 0;
+
+		numOnes = 0;
+		numBytes = 0;
+	}
+
+	@Override
+	public void update(ByteBuffer bytes, int index, int length) {
+		for (int i = index; i < index + length; i++) {
+			int value = bytes.get(i) & 0xFF;
+
+			if (numBytes > 0 || i > index)
+				transitionCounts[(lastBit << 1) | (value >>> 7)]++;
+
+			transitionCounts[0] += TRANSITIONS[value * 4];
+			transitionCounts[1] += TRANSITIONS[value * 4 + 1];
+			transitionCounts[2] += TRANSITIONS[value * 4 + 2];
+			transitionCounts[3] += TRANSITIONS[value * 4 + 3];
+
+			numOnes += Integer.bitCount(value);
+			lastBit = value & 1;
+		}
+
+		numBytes += length;
+	}
+
+	@Override
+	public long getNumBytes() { return numBytes; }
+
+	@Override
+	public double getEntropyPerByte() {
+		if (numBytes == 0)
+			return 0;
+
+		double numBits = numBytes * 8.0;
+		double p1      = numOnes / numBits;
+		double p0      = 1 - p1;
+
+		double p00 = probability(transitionCounts[0], transitionCounts[1]);
+		double p01 = 1 - p00;
+		double p11 = probability(transitionCounts[3], transitionCounts[2]);
+		double p10 = 1 - p11;
+
+		int n = SEQUENCE_LENGTH;
+		double maxLog2 = max(log2(p0) + (n - 1) * log2(p00),
+		                     log2(p0) + n / 2 * log2(p01) + (n / 2 - 1) * log2(p10),
+		                     log2(p0) + log2(p01) + (n - 2) * log2(p11),
+		                     log2(p1) + log2(p10) + (n - 2) * log2(p00),
+		                     log2(p1) + n / 2 * log2(p10) + (n / 2 - 1) * log2(p01),
+		                     log2(p1) + (n - 1) * log2(p11));
+
+		return 8 * Math.max(0, Math.min(1, -maxLog2 / n));
+	}
+
+	private static double probability(long sameCount, long otherCount) {
+		long total = sameCount + otherCount;
+		return total == 0 ? 0 : (double)sameCount / total;
+	}
+
+	private static double log2(double value) {
+		return value == 0 ? Double.NEGATIVE_INFINITY : Math.log(value) / Math.log(2);
+	}
+
+	private static double max(double... values) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (double value : values)
+			if (!Double.isNaN(value))
+				max = Math.max(max, value);
+		return max;
+	}
+}
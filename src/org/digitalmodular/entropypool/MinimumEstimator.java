@@ -0,0 +1,90 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.nio.ByteBuffer;
+
+import static org.digitalmodular.utilities.Verifier.requireThat;
+
+/**
+ * Runs several estimators over the same data and reports the lowest estimate. The data is fed to all estimators in
+ * small slices, so every slice is read from memory once and is still in cache for the other estimators.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-18
+public class MinimumEstimator implements EntropyEstimator {
+	private static final int SLICE_LENGTH = 4096;
+
+	private final EntropyEstimator[] estimators;
+
+	private long numBytes;
+
+	/**
+	 * Creates the set of estimators from NIST SP 800-90B that can run in a single streaming pass.
+	 */
+	public static MinimumEstimator newSP80090BInstance() {
+		return new MinimumEstimator(new MostCommonValueEstimator(),
+		                            new CollisionEstimator(),
+		                            new MarkovEstimator(),
+		                            new CompressionEstimator());
+	}
+
+	public MinimumEstimator(EntropyEstimator... estimators) {
+		requireThat(estimators.length > 0, "estimators.length == 0");
+
+		this.estimators = estimators.clone();
+	}
+
+	@Override
+	public void reset() {
+		numBytes = 0;
+
+		for (EntropyEstimator estimator : estimators)
+			estimator.reset();
+	}
+
+	@Override
+	public void update(ByteBuffer bytes, int index, int length) {
+		for (int offset = 0; offset < length; offset += SLICE_LENGTH) {
+			int sliceLength = Math.min(SLICE_LENGTH, length - offset);
+
+			for (EntropyEstimator estimator : estimators)
+				estimator.update(bytes, index + offset, sliceLength);
+		}
+
+		numBytes += length;
+	}
+
+	@Override
+	public long getNumBytes() { return numBytes; }
+
+	@Override
+	public double getEntropyPerByte() {
+		double entropyPerByte = 8;
+
+		for (EntropyEstimator estimator : estimators)
+			entropyPerByte = Math.min(entropyPerByte, estimator.getEntropyPerByte());
+
+		return entropyPerByte;
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The most common value estimate of NIST SP 800-90B (section 6.3.1), over byte values: the upper 99% confidence
+ * bound of the probability of the most common byte value.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-18
+public class MostCommonValueEstimator implements EntropyEstimator {
+	private final long[] counts = new long[256];
+
+	private long numBytes;
+
+	@Override
+	public void reset() {
+		Arrays.fill(counts, 0);
+		numBytes = 0;
+	}
+
+	@Override
+	public void update(ByteBuffer bytes, int index, int length) {
+		for (int i = index; i < index + length; i++)
+			counts[bytes.get(i) & 0xFF]++;
+
+		numBytes += length;
+	}
+
+	@Override
+	public long getNumBytes() { return numBytes; }
+
+	@Override
+	public double getEntropyPerByte() {
+		if (numBytes < 2)
+			return 0;
+
+		long maxCount = 0;
+		for (long count : counts)
+			maxCount = Math.max(maxCount, count);
+
+		double p      = (double)maxCount / numBytes;
+		double pUpper = Math.min(1, p + 2.576 * Math.sqrt(p * (1 - p) / (numBytes - 1)));
+		return Math.max(0, -Math.log(pUpper) / Math.log(2));
+	}
+}
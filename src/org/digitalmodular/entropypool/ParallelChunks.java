@@ -0,0 +1,93 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the per-chunk work of loading and saving pool files on several threads.
+ * <p>
+ * Each worker gets every {@code stride}-th chunk starting at its own index, so it can keep its own buffers and
+ * ciphers for all of them. With a single chunk or a single processor, the work runs on the calling thread.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-26
+enum ParallelChunks {
+	;
+
+	@FunctionalInterface
+	interface ChunkWorker {
+		void run(int firstChunk, int stride) throws Exception;
+	}
+
+	static void run(int numChunks, String threadName, ChunkWorker worker) throws IOException {
+		int numThreads = Math.min(numChunks, Runtime.getRuntime().availableProcessors());
+		if (numThreads <= 1) {
+			try {
+				worker.run(0, 1);
+			} catch (IOException | RuntimeException ex) {
+				throw ex;
+			} catch (Exception ex) {
+				throw new IOException(ex);
+			}
+			return;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads, runnable -> {
+			Thread thread = new Thread(runnable, threadName);
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			List<Future<Void>> futures = new ArrayList<>(numThreads);
+			for (int i = 0; i < numThreads; i++) {
+				int firstChunk = i;
+				futures.add(executor.submit(() -> {
+					worker.run(firstChunk, numThreads);
+					return null;
+				}));
+			}
+
+			for (Future<Void> future : futures)
+				future.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw (IOException)new InterruptedIOException("Interrupted in " + threadName).initCause(ex);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException)
+				throw (IOException)ex.getCause();
+			if (ex.getCause() instanceof RuntimeException)
+				throw (RuntimeException)ex.getCause();
+			throw new IOException(ex.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
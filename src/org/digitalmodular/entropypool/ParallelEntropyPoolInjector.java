@@ -0,0 +1,301 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import static java.util.Objects.requireNonNull;
+
+import org.digitalmodular.utilities.LogTimer;
+import static org.digitalmodular.utilities.Verifier.requireThat;
+
+/**
+ * Injects directory trees with several reader threads prefetching file contents, while the calling thread is the only
+ * one touching the pool. Memory is bounded by a fixed number of reusable read buffers; readers wait for a free buffer
+ * when the pool can't keep up, and the directory walker waits for the readers. The whole tree is injected as one
+ * batch (see {@link EntropyPool#beginBatch()}).
+ * <p>
+ * Files are credited and skipped the same way as by {@link EntropyPoolInjector}: by an {@link EntropyEstimator}
+ * (1 bit of entropy per byte when none is given), and optionally an {@link InjectedFileIndex}. The readers estimate
+ * while reading, and estimators keep state per file, so every reader gets its own estimator from a factory.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-17
+public class ParallelEntropyPoolInjector {
+	private static final int CHUNK_LENGTH = 1024 * 1024;
+
+	private static final Chunk END_OF_FILES = new Chunk(0);
+
+	private final int numReaders;
+	private final int numBuffers;
+
+	public ParallelEntropyPoolInjector() {
+		this(Runtime.getRuntime().availableProcessors(), 64 * CHUNK_LENGTH);
+	}
+
+	/**
+	 * @param maxBufferedBytes upper bound on the file contents read ahead of the pool, rounded down to whole chunks of
+	 *                         1MiB (minimum 1)
+	 */
+	public ParallelEntropyPoolInjector(int numReaders, int maxBufferedBytes) {
+		requireThat(numReaders > 0, "numReaders <= 0: " + numReaders);
+		requireThat(maxBufferedBytes > 0, "maxBufferedBytes <= 0: " + maxBufferedBytes);
+
+		this.numReaders = numReaders;
+		numBuffers = Math.max(1, maxBufferedBytes / CHUNK_LENGTH);
+	}
+
+	public void injectDirectory(EntropyPool pool, Path directory) throws IOException {
+		injectDirectory(pool, directory,
+		                () -> new FixedRateEstimator(EntropyPoolInjector.DEFAULT_ENTROPY_PER_BYTE));
+	}
+
+	/**
+	 * @param estimatorFactory called once for every reader thread
+	 */
+	public void injectDirectory(EntropyPool pool, Path directory, Supplier<EntropyEstimator> estimatorFactory)
+			throws IOException {
+		new Injection(pool, estimatorFactory, null).injectDirectory(directory);
+	}
+
+	/**
+	 * Injects the directory tree, skipping files that {@code index} has seen before. Injected files are added to the
+	 * index once they're in the pool.
+	 *
+	 * @param estimatorFactory called once for every reader thread
+	 */
+	public void injectDirectory(EntropyPool pool, Path directory, Supplier<EntropyEstimator> estimatorFactory,
+	                            InjectedFileIndex index) throws IOException {
+		requireNonNull(index, "index == null");
+
+		new Injection(pool, estimatorFactory, index).injectDirectory(directory);
+	}
+
+	/**
+	 * The state of one {@link #injectDirectory(EntropyPool, Path, Supplier, InjectedFileIndex)} call.
+	 */
+	private final class Injection {
+		private final EntropyPool       pool;
+		private final InjectedFileIndex index;
+
+		private final ThreadLocal<EntropyEstimator> estimators;
+		private final BlockingQueue<Chunk>          freeChunks   = new ArrayBlockingQueue<>(numBuffers);
+		private final BlockingQueue<Chunk>          filledChunks = new ArrayBlockingQueue<>(numBuffers + 1);
+		private final AtomicReference<IOException>  failure      = new AtomicReference<>();
+
+		Injection(EntropyPool pool, Supplier<EntropyEstimator> estimatorFactory, InjectedFileIndex index) {
+			requireNonNull(pool, "pool == null");
+			requireNonNull(estimatorFactory, "estimatorFactory == null");
+
+			this.pool = pool;
+			this.index = index;
+
+			estimators = ThreadLocal.withInitial(estimatorFactory);
+		}
+
+		void injectDirectory(Path directory) throws IOException {
+			requireThat(Files.isDirectory(directory), "Files.isDirectory(directory) == false: " + directory);
+
+			LogTimer.start(Level.INFO, "Injecting entropy into the Entropy Pool from directory " + directory);
+
+			for (int i = 0; i < numBuffers; i++)
+				freeChunks.add(new Chunk(CHUNK_LENGTH));
+
+			// When the readers are busy and the queue is full, the walker reads the next file itself, so a large tree
+			// doesn't queue up a task for every file
+			ExecutorService readers = new ThreadPoolExecutor(
+					numReaders, numReaders, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(numReaders),
+					runnable -> newDaemonThread(runnable, "EntropyPool reader"),
+					new ThreadPoolExecutor.CallerRunsPolicy());
+
+			Thread walker = newDaemonThread(() -> {
+				try {
+					Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+						@Override
+						public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+							if (attributes.isRegularFile())
+								readers.execute(() -> readFile(file, attributes));
+
+							return Thread.currentThread().isInterrupted() ? FileVisitResult.TERMINATE
+							                                               : FileVisitResult.CONTINUE;
+						}
+
+						@Override
+						public FileVisitResult visitFileFailed(Path file, IOException ex) {
+							failure.compareAndSet(null, ex);
+							return FileVisitResult.CONTINUE;
+						}
+					});
+				} catch (IOException ex) {
+					failure.compareAndSet(null, ex);
+				} finally {
+					readers.shutdown();
+					try {
+						readers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+						filledChunks.put(END_OF_FILES);
+					} catch (InterruptedException ignored) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}, "EntropyPool directory walker");
+			walker.start();
+
+			boolean completed = false;
+			pool.beginBatch();
+			try {
+				while (true) {
+					Chunk chunk = filledChunks.take();
+					if (chunk == END_OF_FILES)
+						break;
+
+					if (chunk.buffer.hasRemaining())
+						pool.injectEntropy(chunk.buffer, chunk.entropyBits);
+
+					// The file is only indexed once all of it is in the pool
+					if (chunk.path != null) {
+						index.add(chunk.path, chunk.size, chunk.lastModified, chunk.digest);
+						chunk.path = null;
+					}
+
+					chunk.buffer.clear();
+					freeChunks.put(chunk);
+				}
+
+				completed = true;
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw (IOException)new InterruptedIOException("Interrupted while injecting " + directory).initCause(ex);
+			} finally {
+				if (!completed) {
+					walker.interrupt();
+					readers.shutdownNow();
+				}
+
+				pool.commitBatch();
+			}
+
+			LogTimer.finishAndLog(Level.FINE, "Injected directory into the Entropy Pool in {0} seconds");
+
+			IOException ex = failure.get();
+			if (ex != null)
+				throw ex;
+		}
+
+		private void readFile(Path file, BasicFileAttributes attributes) {
+			String path         = file.toAbsolutePath().toString();
+			long   lastModified = attributes.lastModifiedTime().toMillis();
+			if (index != null && index.isUnchanged(path, attributes.size(), lastModified)) {
+				if (Logger.getGlobal().isLoggable(Level.FINE))
+					Logger.getGlobal().fine("Skipping file that was injected before: " + file);
+				return;
+			}
+
+			if (Logger.getGlobal().isLoggable(Level.FINER))
+				Logger.getGlobal().finer("Reading file " + file);
+
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				EntropyEstimator estimator = estimators.get();
+				estimator.reset();
+				long credited = 0;
+
+				long size = channel.size();
+
+				InjectedFileIndex.ContentDigest digest = index != null ? new InjectedFileIndex.ContentDigest(size)
+				                                                       : null;
+
+				boolean endOfFile = false;
+				while (!endOfFile) {
+					Chunk      chunk  = freeChunks.take();
+					ByteBuffer buffer = chunk.buffer;
+
+					while (buffer.hasRemaining() && !endOfFile)
+						endOfFile = channel.read(buffer) < 0;
+
+					buffer.flip();
+					if (digest != null)
+						digest.update(buffer);
+					estimator.update(buffer);
+					chunk.entropyBits = EntropyPoolInjector.getEntropyBitsToCredit(estimator, credited,
+					                                                               buffer.remaining());
+					credited += chunk.entropyBits;
+
+					if (endOfFile && index != null)
+						chunk.setIndexEntry(path, size, lastModified, digest.getDigest());
+
+					if (buffer.hasRemaining() || chunk.path != null) {
+						filledChunks.put(chunk);
+					} else {
+						buffer.clear();
+						freeChunks.put(chunk);
+					}
+				}
+			} catch (IOException ex) {
+				failure.compareAndSet(null, ex);
+			} catch (RuntimeException ex) {
+				failure.compareAndSet(null, new IOException("Could not inject " + file, ex));
+			} catch (InterruptedException ignored) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static Thread newDaemonThread(Runnable runnable, String name) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/**
+	 * A read buffer, with the entropy credited for its contents. The last chunk of a file carries the file's
+	 * {@link InjectedFileIndex} entry, when there's an index.
+	 */
+	private static final class Chunk {
+		final ByteBuffer buffer;
+
+		int    entropyBits;
+		String path;
+		long   size;
+		long   lastModified;
+		long   digest;
+
+		Chunk(int length) {
+			buffer = ByteBuffer.allocateDirect(length);
+		}
+
+		void setIndexEntry(String path, long size, long lastModified, long digest) {
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.digest = digest;
+		}
+	}
+}
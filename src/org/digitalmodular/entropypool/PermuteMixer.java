@@ -19,11 +19,12 @@
 
 package org.digitalmodular.entropypool;
 
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.logging.Level;
 
 import org.digitalmodular.utilities.LogTimer;
-import static org.digitalmodular.utilities.ArrayUtilities.shuffle;
 
 /**
  * @author Mark Jeronimus
@@ -32,15 +33,63 @@ import static org.digitalmodular.utilities.ArrayUtilities.shuffle;
  */
 // Created 2016-08-02
 public class PermuteMixer implements EntropyPoolMixer {
+	private byte[]     randomBytes;
+	private ByteBuffer randomWords;
+
 	@Override
 	public void mix(EntropyPool2 pool) {
 		LogTimer.start();
 
 		SecureRandom random = pool.getSecureRandom();
-		byte[]       buffer = pool.buffer();
+		ByteBuffer   buffer = pool.storage().buffer();
+
+		if (randomBytes == null) {
+			randomBytes = new byte[WhitenMixer.KEYSTREAM_LENGTH];
+			randomWords = ByteBuffer.wrap(randomBytes);
+		}
+
+		randomWords.position(randomWords.limit());
+
+		// Fisher-Yates, same order as ArrayUtilities.shuffle()
+		for (int i = buffer.capacity() - 1; i > 0; i--) {
+			int j = nextInt(random, i + 1);
 
-		shuffle(buffer, random);
+			byte temp = buffer.get(i);
+			buffer.put(i, buffer.get(j));
+			buffer.put(j, temp);
+		}
+
+		Arrays.fill(randomBytes, (byte)0);
 
 		LogTimer.finishAndLog(Level.FINER, "Permuted the Entropy Pool in {0} seconds");
 	}
+
+	/**
+	 * Returns an unbiased value in the range [0, bound) using Lemire's multiply-shift method, which only needs a
+	 * division in the rare case that the first candidate falls in the biased region.
+	 */
+	private int nextInt(SecureRandom random, int bound) {
+		long product  = nextUnsignedInt(random) * bound;
+		long fraction = product & 0xFFFFFFFFL;
+
+		if (fraction < bound) {
+			long threshold = 0x100000000L % bound;
+
+			while (fraction < threshold) {
+				product = nextUnsignedInt(random) * bound;
+				fraction = product & 0xFFFFFFFFL;
+			}
+		}
+
+		return (int)(product >>> 32);
+	}
+
+	private long nextUnsignedInt(SecureRandom random) {
+		if (!randomWords.hasRemaining()) {
+			random.nextBytes(randomBytes);
+			randomWords.clear();
+		}
+
+		return randomWords.getInt() & 0xFFFFFFFFL;
+	}
 }
@@ -0,0 +1,200 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.security.auth.Destroyable;
+import static java.util.Objects.requireNonNull;
+
+import static org.digitalmodular.utilities.Verifier.requireState;
+import static org.digitalmodular.utilities.Verifier.requireThat;
+
+/**
+ * The secret an {@link EncryptedEntropyPoolFile} is encrypted with: either a passphrase or the contents of a key file.
+ * <p>
+ * Every file gets its own AES key, derived from this secret and a random salt with HMAC-SHA256. A passphrase is first
+ * stretched with PBKDF2. That is slow on purpose, so the result is cached per KDF salt and reused by later saves.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-25
+public final class PoolFileKey implements Destroyable {
+	public static final int DEFAULT_ITERATIONS  = 200_000;
+	/** Loading refuses files with more iterations, so a forged header can't stall it for hours */
+	public static final int MAX_ITERATIONS      = 10_000_000;
+	public static final int KEY_FILE_MIN_LENGTH = 32;
+
+	static final byte TYPE_KEY_FILE   = 0;
+	static final byte TYPE_PASSPHRASE = 1;
+
+	static final int SALT_LENGTH     = 16;
+	static final int FILE_KEY_LENGTH = 32;
+
+	private static final String PBKDF2_ALGORITHM = "PBKDF2WithHmacSHA256";
+	private static final String HMAC_ALGORITHM   = "HmacSHA256";
+
+	private final byte   type;
+	private final char[] passphrase;
+	private final int    iterations;
+
+	// Guarded by this
+	/** The key file contents, or the stretched passphrase for {@link #kdfSalt} */
+	private byte[]  masterKey;
+	private byte[]  kdfSalt;
+	private int     kdfIterations;
+	private boolean destroyed;
+
+	private PoolFileKey(byte type, char[] passphrase, int iterations, byte[] masterKey) {
+		this.type = type;
+		this.passphrase = passphrase;
+		this.iterations = iterations;
+		this.masterKey = masterKey;
+	}
+
+	public static PoolFileKey fromPassphrase(char[] passphrase) {
+		return fromPassphrase(passphrase, DEFAULT_ITERATIONS);
+	}
+
+	/**
+	 * @param iterations the PBKDF2 iteration count for files saved with this key. Loading uses the count in the file.
+	 */
+	public static PoolFileKey fromPassphrase(char[] passphrase, int iterations) {
+		requireNonNull(passphrase, "passphrase == null");
+		requireThat(passphrase.length > 0, "passphrase.length == 0");
+		requireThat(iterations > 0, "iterations <= 0: " + iterations);
+		requireThat(iterations <= MAX_ITERATIONS, "iterations > " + MAX_ITERATIONS + ": " + iterations);
+
+		return new PoolFileKey(TYPE_PASSPHRASE, passphrase.clone(), iterations, null);
+	}
+
+	public static PoolFileKey fromKeyFile(File keyFile) throws IOException {
+		requireNonNull(keyFile, "keyFile == null");
+		requireThat(keyFile.isFile(), "keyFile.isFile() == false: " + keyFile);
+
+		byte[] keyMaterial = Files.readAllBytes(keyFile.toPath());
+		if (keyMaterial.length < KEY_FILE_MIN_LENGTH) {
+			Arrays.fill(keyMaterial, (byte)0);
+			throw new IOException("Key file is shorter than " + KEY_FILE_MIN_LENGTH + " bytes: " + keyFile);
+		}
+
+		return new PoolFileKey(TYPE_KEY_FILE, null, 0, keyMaterial);
+	}
+
+	/**
+	 * Writes a new key file with {@value #KEY_FILE_MIN_LENGTH} random bytes. The file must not exist yet.
+	 */
+	public static void generateKeyFile(File keyFile, SecureRandom random) throws IOException {
+		requireNonNull(keyFile, "keyFile == null");
+		requireNonNull(random, "random == null");
+
+		byte[] keyMaterial = new byte[KEY_FILE_MIN_LENGTH];
+		random.nextBytes(keyMaterial);
+		try {
+			Files.write(keyFile.toPath(), keyMaterial, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		} finally {
+			Arrays.fill(keyMaterial, (byte)0);
+		}
+	}
+
+	byte getType() { return type; }
+
+	int getIterations() { return iterations; }
+
+	/**
+	 * Returns the KDF salt to save with, which is the one of the last derivation so the stretched passphrase can be
+	 * reused. Key file keys don't use it.
+	 */
+	synchronized byte[] getKdfSalt(SecureRandom random) {
+		requireState(!destroyed, "destroyed");
+
+		if (type == TYPE_KEY_FILE)
+			return new byte[SALT_LENGTH];
+
+		if (kdfSalt == null || kdfIterations != iterations) {
+			byte[] salt = new byte[SALT_LENGTH];
+			random.nextBytes(salt);
+			return salt;
+		}
+
+		return kdfSalt.clone();
+	}
+
+	/**
+	 * Derives the AES key of one file. The caller should zero the result after use.
+	 */
+	synchronized byte[] deriveFileKey(byte[] kdfSalt, int kdfIterations, byte[] fileSalt)
+			throws GeneralSecurityException {
+		requireState(!destroyed, "destroyed");
+
+		if (type == TYPE_PASSPHRASE &&
+		    (masterKey == null || kdfIterations != this.kdfIterations || !Arrays.equals(kdfSalt, this.kdfSalt))) {
+			PBEKeySpec spec = new PBEKeySpec(passphrase, kdfSalt, kdfIterations, FILE_KEY_LENGTH * 8);
+			try {
+				byte[] stretched = SecretKeyFactory.getInstance(PBKDF2_ALGORITHM).generateSecret(spec).getEncoded();
+
+				if (masterKey != null)
+					Arrays.fill(masterKey, (byte)0);
+				masterKey = stretched;
+				this.kdfSalt = kdfSalt.clone();
+				this.kdfIterations = kdfIterations;
+			} finally {
+				spec.clearPassword();
+			}
+		}
+
+		Mac hmac = Mac.getInstance(HMAC_ALGORITHM);
+		hmac.init(new SecretKeySpec(masterKey, HMAC_ALGORITHM));
+		return hmac.doFinal(fileSalt);
+	}
+
+	/**
+	 * Zeroes the passphrase or key material.
+	 */
+	@Override
+	public synchronized void destroy() {
+		if (passphrase != null)
+			Arrays.fill(passphrase, '\0');
+		if (masterKey != null)
+			Arrays.fill(masterKey, (byte)0);
+
+		masterKey = null;
+		destroyed = true;
+	}
+
+	@Override
+	public synchronized boolean isDestroyed() { return destroyed; }
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + '[' + (type == TYPE_KEY_FILE ? "keyFile" : "passphrase") + ']';
+	}
+}
@@ -0,0 +1,248 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.io.NotSerializableException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import static java.util.Objects.requireNonNull;
+
+import org.bouncycastle.crypto.prng.EntropySource;
+import org.bouncycastle.crypto.prng.EntropySourceProvider;
+import org.bouncycastle.crypto.prng.SP800SecureRandom;
+
+import org.digitalmodular.utilities.SecureRandomFactory;
+import static org.digitalmodular.utilities.Verifier.requireThat;
+
+/**
+ * A {@link SecureRandom} that expands a small amount of pool entropy into an unlimited stream, for consumers that
+ * need a securely seeded generator rather than raw pool entropy.
+ * <p>
+ * An AES CTR_DRBG (SP 800-90A) is seeded from {@link EntropyPool#extractEntropy(int)}. The DRBG only produces keys
+ * for an AES-CTR keystream, which is where the output comes from, so the bulk of the work runs on the JVM's AES
+ * intrinsics instead of a per-request DRBG update. The keystream is rekeyed from the DRBG every
+ * {@value #REKEY_INTERVAL} bytes, and after the configured number of bytes the DRBG is reseeded from new pool
+ * entropy. {@link #generateSeed(int)} returns raw pool entropy.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-21
+public class PoolSeededSecureRandom extends SecureRandom {
+	private static final long serialVersionUID = 1L;
+
+	public static final int  DEFAULT_KEY_LENGTH      = 256;
+	public static final long DEFAULT_RESEED_INTERVAL = 256L * 1024 * 1024;
+
+	/** Bounds how much earlier output a compromised keystream state exposes */
+	public static final int REKEY_INTERVAL = 1024 * 1024;
+
+	private static final int    BUFFER_LENGTH = 4096;
+	private static final byte[] ZEROES        = new byte[64 * 1024];
+
+	private static final AtomicLong INSTANCE_COUNTER = new AtomicLong();
+
+	private final EntropyPool pool;
+	private final int         keyLength;
+	private final long        reseedInterval;
+
+	// Guarded by this
+	private final Cipher            keystream;
+	private final byte[]            buffer = new byte[BUFFER_LENGTH];
+	private       int               bufferIndex;
+	private       SP800SecureRandom drbg;
+	private       long              generatedSinceReseed;
+	private       int               generatedSinceRekey;
+	private       long              reseedCount;
+
+	public PoolSeededSecureRandom(EntropyPool pool) throws NoSuchAlgorithmException, NoSuchPaddingException {
+		this(pool, DEFAULT_KEY_LENGTH, DEFAULT_RESEED_INTERVAL);
+	}
+
+	/**
+	 * @param keyLength      the AES key length, and the number of bits extracted from the pool per (re)seed
+	 * @param reseedInterval the number of bytes to generate before reseeding from the pool
+	 */
+	public PoolSeededSecureRandom(EntropyPool pool, int keyLength, long reseedInterval)
+			throws NoSuchAlgorithmException, NoSuchPaddingException {
+		requireNonNull(pool, "pool == null");
+		requireThat(reseedInterval >= REKEY_INTERVAL,
+		            "reseedInterval < REKEY_INTERVAL: " + reseedInterval + " < " + REKEY_INTERVAL);
+
+		this.pool = pool;
+		this.keyLength = keyLength;
+		this.reseedInterval = reseedInterval;
+
+		keystream = Cipher.getInstance("AES/CTR/NoPadding");
+
+		reseed();
+	}
+
+	@Override
+	public String getAlgorithm() { return "EntropyPool/SP800CTR/AES/" + keyLength; }
+
+	/**
+	 * Has no effect on the generator. Entropy should be injected into the pool instead.
+	 */
+	@Override
+	public void setSeed(byte[] seed) { }
+
+	@Override
+	public void setSeed(long seed) { }
+
+	@Override
+	public synchronized void nextBytes(byte[] bytes) {
+		if (bytes.length >= BUFFER_LENGTH) {
+			generate(bytes, 0, bytes.length);
+			return;
+		}
+
+		// Serve small requests from buffered keystream, zeroing what was handed out
+		int offset = 0;
+		while (offset < bytes.length) {
+			if (bufferIndex == BUFFER_LENGTH) {
+				generate(buffer, 0, BUFFER_LENGTH);
+				bufferIndex = 0;
+			}
+
+			int count = Math.min(bytes.length - offset, BUFFER_LENGTH - bufferIndex);
+			System.arraycopy(buffer, bufferIndex, bytes, offset, count);
+			Arrays.fill(buffer, bufferIndex, bufferIndex + count, (byte)0);
+			bufferIndex += count;
+			offset += count;
+		}
+	}
+
+	@Override
+	public byte[] generateSeed(int numBytes) {
+		synchronized (pool) {
+			return pool.extractEntropy(numBytes);
+		}
+	}
+
+	/**
+	 * Reseeds the DRBG from new pool entropy, and rekeys the keystream from it.
+	 *
+	 * @throws IllegalStateException when the pool has too little entropy available
+	 */
+	public synchronized void reseed() {
+		byte[] nonce = ByteBuffer.allocate(16)
+		                         .putLong(System.nanoTime())
+		                         .putLong(INSTANCE_COUNTER.incrementAndGet())
+		                         .array();
+
+		// The first seed instantiates the DRBG. Later ones are mixed into its state, with the nonce as additional input
+		if (drbg == null)
+			drbg = SecureRandomFactory.newSP800CTR(new PoolEntropySourceProvider(), keyLength, nonce);
+		else
+			drbg.reseed(nonce);
+
+		generatedSinceReseed = 0;
+		reseedCount++;
+
+		rekey();
+
+		// Discard keystream buffered under the old key
+		Arrays.fill(buffer, (byte)0);
+		bufferIndex = BUFFER_LENGTH;
+	}
+
+	public long getReseedInterval() { return reseedInterval; }
+
+	public synchronized long getReseedCount() { return reseedCount; }
+
+	/** Must hold this. */
+	private void generate(byte[] bytes, int offset, int length) {
+		while (length > 0) {
+			if (generatedSinceReseed >= reseedInterval)
+				reseed();
+			else if (generatedSinceRekey == REKEY_INTERVAL)
+				rekey();
+
+			int count = Math.min(Math.min(length, ZEROES.length), REKEY_INTERVAL - generatedSinceRekey);
+
+			try {
+				keystream.update(ZEROES, 0, count, bytes, offset);
+			} catch (GeneralSecurityException ex) {
+				throw new IllegalStateException(ex);
+			}
+
+			offset += count;
+			length -= count;
+			generatedSinceRekey += count;
+			generatedSinceReseed += count;
+		}
+	}
+
+	/** Must hold this. */
+	private void rekey() {
+		int    keyBytes    = keyLength / 8;
+		byte[] keyMaterial = new byte[keyBytes + 16];
+		drbg.nextBytes(keyMaterial);
+
+		try {
+			keystream.init(Cipher.ENCRYPT_MODE,
+			               new SecretKeySpec(keyMaterial, 0, keyBytes, "AES"),
+			               new IvParameterSpec(keyMaterial, keyBytes, 16));
+		} catch (GeneralSecurityException ex) {
+			throw new IllegalStateException(ex);
+		} finally {
+			Arrays.fill(keyMaterial, (byte)0);
+		}
+
+		generatedSinceRekey = 0;
+	}
+
+	/**
+	 * SecureRandom is Serializable, but the generator state is key material and the pool can't be serialized anyway.
+	 */
+	private Object writeReplace() throws NotSerializableException {
+		throw new NotSerializableException(getClass().getName());
+	}
+
+	private final class PoolEntropySourceProvider implements EntropySourceProvider {
+		@Override
+		public EntropySource get(int bitsRequired) {
+			return new EntropySource() {
+				@Override
+				public boolean isPredictionResistant() { return false; }
+
+				@Override
+				public byte[] getEntropy() {
+					synchronized (pool) {
+						return pool.extractEntropy((bitsRequired + 7) / 8);
+					}
+				}
+
+				@Override
+				public int entropySize() { return bitsRequired; }
+			};
+		}
+	}
+}
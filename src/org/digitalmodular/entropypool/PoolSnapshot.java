@@ -0,0 +1,130 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import static java.util.Objects.requireNonNull;
+
+import org.digitalmodular.utilities.LogTimer;
+import static org.digitalmodular.utilities.Verifier.requireState;
+import static org.digitalmodular.utilities.Verifier.requireThat;
+
+/**
+ * A copy of the state of a pool at one point in time, so it can be saved while the pool keeps serving.
+ * <p>
+ * Capturing serializes the metadata (a few hundred bytes) and copies the pool bytes with one bulk copy into a buffer
+ * that's kept for the next capture. Only the capture needs the pool's lock. The buffer is allocated off-heap when the
+ * pool's storage is, so the copy isn't more exposed than the pool itself. {@link #clear()} zeroes it.
+ * <p>
+ * This class is not thread-safe. Use one snapshot per saving thread, or synchronize on it.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-28
+public final class PoolSnapshot {
+	private byte[]     metadata;
+	private ByteBuffer poolBytes;
+	private long       modifyCount;
+	private long       captureDate;
+
+	/**
+	 * Copies the state of the pool. The caller must hold the pool's lock, or otherwise keep others out of the pool.
+	 */
+	public void capture(EntropyPool2 pool) {
+		requireNonNull(pool, "pool == null");
+
+		ByteBuffer source = pool.storage().buffer().duplicate();
+		source.clear();
+
+		if (poolBytes == null || poolBytes.capacity() != source.capacity() || poolBytes.isDirect() != source.isDirect()) {
+			clear();
+			poolBytes = source.isDirect() ? ByteBuffer.allocateDirect(source.capacity())
+			                              : ByteBuffer.allocate(source.capacity());
+		}
+
+		poolBytes.clear();
+		poolBytes.put(source);
+		poolBytes.clear();
+
+		try {
+			metadata = EntropyPool2FileV3.getMetadata(pool);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+
+		modifyCount = pool.getModifyCount();
+		captureDate = System.currentTimeMillis();
+	}
+
+	public boolean isCaptured() { return metadata != null; }
+
+	/**
+	 * Returns {@link EntropyPool2#getModifyCount()} at the moment of capture.
+	 */
+	public long getModifyCount() { return modifyCount; }
+
+	public long getCaptureDate() { return captureDate; }
+
+	public int length() {
+		requireState(isCaptured(), "Not captured");
+
+		return poolBytes.capacity();
+	}
+
+	/**
+	 * Saves the captured state the same way as {@link EntropyPool2#saveToFile(File, File, File)}.
+	 */
+	public void saveToFile(File poolFile, File bakFile, File tempFile) throws IOException {
+		requireNonNull(poolFile, "poolFile == null");
+		requireNonNull(bakFile, "bakFile == null");
+		requireNonNull(tempFile, "tempFile == null");
+		requireThat(!tempFile.exists() || tempFile.isFile(), "tempFile.isFile() == false: " + tempFile);
+		requireThat(!tempFile.exists() || tempFile.canWrite(), "tempFile.canWrite() == false: " + tempFile);
+		requireState(isCaptured(), "Not captured");
+
+		LogTimer.start(Level.INFO, "Saving Entropy Pool snapshot to file " + tempFile);
+
+		EntropyPool2FileV3.saveToFile(tempFile, metadata, poolBytes, EntropyPool2FileV3.DEFAULT_CHUNK_LENGTH);
+
+		EntropyPool2.replacePoolFile(poolFile, bakFile, tempFile);
+
+		LogTimer.finishAndLog(Level.FINE, "Saved the Entropy Pool snapshot in {0} seconds");
+	}
+
+	/**
+	 * Zeroes the copy of the pool bytes. The buffer is kept for the next capture.
+	 */
+	public void clear() {
+		if (poolBytes != null) {
+			for (int i = 0; i <= poolBytes.capacity() - 8; i += 8)
+				poolBytes.putLong(i, 0);
+			for (int i = poolBytes.capacity() & ~7; i < poolBytes.capacity(); i++)
+				poolBytes.put(i, (byte)0);
+		}
+
+		metadata = null;
+	}
+}
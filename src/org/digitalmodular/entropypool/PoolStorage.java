@@ -0,0 +1,50 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * The memory that holds the pool bytes. The pool, its mixers, loaders and savers only access the bytes through this
+ * abstraction, so the bytes can live on the heap, off-heap or in a file mapping.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-22
+public interface PoolStorage extends Closeable {
+	int length();
+
+	/**
+	 * Returns the pool bytes as a buffer with capacity {@link #length()}. The same instance is returned every time,
+	 * so only absolute get and put operations may be used on it. Relative operations must be done on a
+	 * {@link ByteBuffer#duplicate() duplicate}.
+	 */
+	ByteBuffer buffer();
+
+	/**
+	 * Releases the storage. Storage that doesn't persist the pool zeroes the bytes. The storage can't be used
+	 * afterwards.
+	 */
+	@Override
+	void close();
+}
@@ -19,11 +19,17 @@
 
 package org.digitalmodular.entropypool;
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.logging.Level;
+import java.util.stream.IntStream;
 
 import org.digitalmodular.utilities.LogTimer;
-import static org.digitalmodular.utilities.container.MessageDigestUtilities.*;
+import org.digitalmodular.utilities.container.LoggingCount;
+import org.digitalmodular.utilities.container.LoggingReference;
+import static org.digitalmodular.utilities.container.MessageDigestUtilities.getDigestToBuffer;
+import static org.digitalmodular.utilities.container.MessageDigestUtilities.hashBlockFromBuffer;
 
 /**
  * @author Mark Jeronimus
@@ -32,60 +38,201 @@ import static org.digitalmodular.utilities.container.MessageDigestUtilities.*;
  */
 // Created 2016-08-02
 public class RehashMixer implements EntropyPoolMixer {
-	private byte[] digestBuffer;
+	/**
+	 * Length of the metadata excluding the algorithm names: runtime (44), createDate (8), accessCount (12), the
+	 * counters of the three algorithm references (36), injectedEntropy and extractedEntropy (40), mixCount (12), and
+	 * hashX, hashY and stripe length (12).
+	 */
+	private static final int METADATA_LENGTH = 164;
+
+	private ByteBuffer metadata;
+	private int        nanoTimeOffset;
+	private int        hashXOffset;
+
+	private MessageDigest digest;
+	private Stripe[]      stripes = new Stripe[0];
 
 	@Override
 	public void mix(EntropyPool2 pool) {
 		LogTimer.start();
 
-		MessageDigest digest = pool.getMessageDigest();
-		byte[]        buffer = pool.buffer();
-
-		int hashX = pool.hashX();
-		int hashY = pool.hashX();
-
-		int digestSize = digest.getDigestLength();
-
-		if (digestBuffer == null || digestBuffer.length != digestSize)
-			digestBuffer = new byte[digestSize];
-
-		int numHashes = (buffer.length + digestSize - 1) / digestSize;
-		for (int i = 0; i < numHashes; i++) {
-			digest.reset();
-
-			hashLong(digest, System.currentTimeMillis());
-			hashLong(digest, System.nanoTime());
-			hashInt(digest, Runtime.getRuntime().availableProcessors());
-			hashLong(digest, Runtime.getRuntime().freeMemory());
-			hashLong(digest, Runtime.getRuntime().maxMemory());
-			hashLong(digest, Runtime.getRuntime().totalMemory());
-
-			hashLong(digest, pool.getCreateDate());
-			hashLoggingCount(digest, pool.accessCount());
-			hashLoggingReference(digest, pool.secureRandom());
-			hashLoggingReference(digest, pool.messageDigest());
-			hashLoggingReference(digest, pool.cipher());
-			hashLoggingReference(digest, pool.injectedEntropy());
-			hashLoggingReference(digest, pool.extractedEntropy());
-			hashLoggingCount(digest, pool.mixCount());
-			hashInt(digest, hashX);
-			hashInt(digest, hashY);
-			hashInt(digest, buffer.length);
-
-			hashBlockFromBuffer(digest, buffer, hashX);
-			hashBlockFromBuffer(digest, buffer, hashY);
-
-			getDigestToBuffer(digest, buffer, hashX, digestBuffer);
-
-			int hi = buffer[hashX] & 0xFF;
-			int lo = buffer[(hashX + 1) % buffer.length] & 0xFF;
-			hashY = (hashY + (hi << 8) + lo) % buffer.length;
-			hashX = (hashX + digestSize) % buffer.length;
+		ByteBuffer buffer = pool.storage().buffer();
+		int[]      hashX  = pool.hashX();
+		int[]      hashY  = pool.hashY();
+
+		serializeMetadata(pool);
+		prepareStripes(pool.getMessageDigest(), buffer.capacity(), hashX.length);
+
+		if (stripes.length == 1) {
+			stripes[0].rehash(buffer, hashX, hashY);
+		} else {
+			IntStream.range(0, stripes.length)
+			         .parallel()
+			         .forEach(stripe -> stripes[stripe].rehash(buffer, hashX, hashY));
 		}
 
-		pool.hashX(hashX);
-		pool.hashY(hashY);
+		Arrays.fill(metadata.array(), (byte)0);
 
 		LogTimer.finishAndLog(Level.FINER, "Rehashed the Entropy Pool in {0} seconds");
 	}
+
+	static int stripeStart(int bufferLength, int numStripes, int stripe) {
+		return (int)((long)bufferLength * stripe / numStripes);
+	}
+
+	static int stripeLength(int bufferLength, int numStripes, int stripe) {
+		return stripeStart(bufferLength, numStripes, stripe + 1) - stripeStart(bufferLength, numStripes, stripe);
+	}
+
+	/**
+	 * Gives every stripe its own clone of the digest and its own copy of the metadata, so stripes can run
+	 * concurrently.
+	 */
+	private void prepareStripes(MessageDigest poolDigest, int bufferLength, int numStripes) {
+		if (poolDigest != digest || stripes.length != numStripes) {
+			digest = poolDigest;
+			stripes = new Stripe[numStripes];
+
+			for (int stripe = 0; stripe < numStripes; stripe++)
+				stripes[stripe] = new Stripe(stripe, numStripes == 1 ? poolDigest : cloneDigest(poolDigest));
+		}
+
+		for (Stripe stripe : stripes)
+			stripe.prepare(bufferLength, numStripes, metadata);
+	}
+
+	private static MessageDigest cloneDigest(MessageDigest digest) {
+		try {
+			return (MessageDigest)digest.clone();
+		} catch (CloneNotSupportedException ex) {
+			throw new IllegalStateException("MessageDigest cannot be cloned for striped rehashing: " +
+			                                digest.getAlgorithm(), ex);
+		}
+	}
+
+	/**
+	 * Serializes everything that doesn't change during a mix. The fields that do change ({@code nanoTime},
+	 * {@code hashX} and {@code hashY}) are reserved and overwritten for every block, and the stripe length is filled
+	 * in per stripe.
+	 */
+	private void serializeMetadata(EntropyPool2 pool) {
+		String secureRandomAlgorithm  = pool.getSecureRandom().getAlgorithm();
+		String messageDigestAlgorithm = pool.getMessageDigest().getAlgorithm();
+		String cipherAlgorithm        = pool.getCipher().getAlgorithm();
+
+		int length = METADATA_LENGTH + Character.BYTES * (secureRandomAlgorithm.length() +
+		                                                  messageDigestAlgorithm.length() +
+		                                                  cipherAlgorithm.length());
+
+		if (metadata == null || metadata.capacity() < length)
+			metadata = ByteBuffer.allocate(length);
+
+		metadata.clear();
+
+		Runtime runtime = Runtime.getRuntime();
+		metadata.putLong(System.currentTimeMillis());
+		nanoTimeOffset = metadata.position();
+		metadata.putLong(0);
+		metadata.putInt(runtime.availableProcessors());
+		metadata.putLong(runtime.freeMemory());
+		metadata.putLong(runtime.maxMemory());
+		metadata.putLong(runtime.totalMemory());
+
+		metadata.putLong(pool.getCreateDate());
+		putLoggingCount(metadata, pool.accessCount());
+		putLoggingReference(metadata, pool.secureRandom(), secureRandomAlgorithm);
+		putLoggingReference(metadata, pool.messageDigest(), messageDigestAlgorithm);
+		putLoggingReference(metadata, pool.cipher(), cipherAlgorithm);
+		putLoggingReference(metadata, pool.injectedEntropy());
+		putLoggingReference(metadata, pool.extractedEntropy());
+		putLoggingCount(metadata, pool.mixCount());
+		hashXOffset = metadata.position();
+		metadata.putInt(0);
+		metadata.putInt(0);
+		metadata.putInt(0);
+
+		metadata.flip();
+	}
+
+	private static void putLoggingCount(ByteBuffer metadata, LoggingCount value) {
+		metadata.putInt(value.get());
+		metadata.putLong(value.getCountDate());
+	}
+
+	private static void putLoggingReference(ByteBuffer metadata, LoggingReference<?> value, String algorithm) {
+		for (int i = 0; i < algorithm.length(); i++)
+			metadata.putChar(algorithm.charAt(i));
+
+		metadata.putInt(value.getModifyCount());
+		metadata.putLong(value.getModifyDate());
+	}
+
+	private static void putLoggingReference(ByteBuffer metadata, LoggingReference<Long> value) {
+		metadata.putLong(value.get());
+		metadata.putInt(value.getModifyCount());
+		metadata.putLong(value.getModifyDate());
+	}
+
+	private final class Stripe {
+		private final int           index;
+		private final MessageDigest digest;
+		private final byte[]        digestBuffer;
+
+		private ByteBuffer stripeMetadata;
+		private int        start;
+		private int        length;
+
+		Stripe(int index, MessageDigest digest) {
+			this.index = index;
+			this.digest = digest;
+			digestBuffer = new byte[digest.getDigestLength()];
+		}
+
+		void prepare(int bufferLength, int numStripes, ByteBuffer metadata) {
+			start = stripeStart(bufferLength, numStripes, index);
+			length = stripeLength(bufferLength, numStripes, index);
+
+			if (stripeMetadata == null || stripeMetadata.capacity() < metadata.limit())
+				stripeMetadata = ByteBuffer.allocate(metadata.capacity());
+
+			System.arraycopy(metadata.array(), 0, stripeMetadata.array(), 0, metadata.limit());
+			stripeMetadata.limit(metadata.limit());
+			stripeMetadata.putInt(hashXOffset + 8, length);
+		}
+
+		void rehash(ByteBuffer buffer, int[] hashXs, int[] hashYs) {
+			// The digest utilities move position and limit around
+			ByteBuffer view = buffer.duplicate();
+
+			int hashX = hashXs[index];
+			int hashY = hashYs[index];
+
+			int digestSize = digest.getDigestLength();
+
+			int numHashes = (length + digestSize - 1) / digestSize;
+			for (int i = 0; i < numHashes; i++) {
+				digest.reset();
+
+				stripeMetadata.putLong(nanoTimeOffset, System.nanoTime());
+				stripeMetadata.putInt(hashXOffset, hashX);
+				stripeMetadata.putInt(hashXOffset + 4, hashY);
+				digest.update(stripeMetadata.array(), 0, stripeMetadata.limit());
+
+				hashBlockFromBuffer(digest, view, start, length, hashX);
+				hashBlockFromBuffer(digest, view, start, length, hashY);
+
+				getDigestToBuffer(digest, view, start, length, hashX, digestBuffer);
+
+				int hi = buffer.get(start + hashX) & 0xFF;
+				int lo = buffer.get(start + (hashX + 1) % length) & 0xFF;
+				hashY = (hashY + (hi << 8) + lo) % length;
+				hashX = (hashX + digestSize) % length;
+			}
+
+			Arrays.fill(stripeMetadata.array(), (byte)0);
+
+			hashXs[index] = hashX;
+			hashYs[index] = hashY;
+		}
+	}
 }
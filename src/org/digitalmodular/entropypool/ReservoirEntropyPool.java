@@ -0,0 +1,439 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import static java.util.Objects.requireNonNull;
+
+import static org.digitalmodular.utilities.Verifier.requireThat;
+
+/**
+ * Front for an {@link EntropyPool} that serves small extractions from a reservoir of pre-extracted bytes.
+ * <p>
+ * Every extraction from the pool costs at least one full mix, regardless of how few bytes are requested. A dedicated
+ * refill thread extracts in large chunks whenever the reservoir drops below the low watermark, until it reaches the
+ * high watermark or the pool runs out of entropy. Once dry, it retries on the next injection through this front, or
+ * within {@value #DRY_POLL_INTERVAL_MILLIS}ms of entropy arriving in the pool some other way. Requests that fit in the
+ * reservoir are copied out and the consumed bytes are zeroed immediately. Larger requests take what the reservoir
+ * holds and the rest from the pool directly, so anything up to {@link #getAvailableEntropy()} can be extracted. If the
+ * refill thread dies, every later extraction throws an {@link IllegalStateException}.
+ * <p>
+ * Bytes in the reservoir are not counted as extracted until they are handed out, so the entropy accounting of this
+ * front is the same as if every request went to the pool. Bytes still in the reservoir on {@link #close()} are
+ * discarded, and then count as extracted.
+ *
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-20
+public class ReservoirEntropyPool implements EntropyPool, Closeable {
+	public static final int DEFAULT_CAPACITY     = 16 * 1024;
+	public static final int DEFAULT_CHUNK_LENGTH = 4 * 1024;
+
+	private static final long DRY_POLL_INTERVAL_MILLIS = 100;
+
+	private final EntropyPool pool;
+	private final byte[]      reservoir;
+	private final int         lowWatermark;
+	private final int         highWatermark;
+	private final int         chunkLength;
+	private final Object      lock = new Object();
+	private final Thread      refillThread;
+
+	// Guarded by lock
+	private int       readIndex;
+	private int       level;
+	private boolean   entropyInjected;
+	private boolean   closed;
+	private long      hitCount;
+	private long      missCount;
+	private long      servedBytes;
+	private long      refillCount;
+	private Throwable refillFailure;
+
+	public ReservoirEntropyPool(EntropyPool pool) {
+		this(pool, DEFAULT_CAPACITY, DEFAULT_CAPACITY / 4, DEFAULT_CAPACITY, DEFAULT_CHUNK_LENGTH);
+	}
+
+	/**
+	 * @param capacity      the size of the reservoir in bytes
+	 * @param lowWatermark  refilling starts when fewer bytes than this remain
+	 * @param highWatermark refilling stops when at least this many bytes are available
+	 * @param chunkLength   the maximum number of bytes to extract from the pool at once
+	 */
+	public ReservoirEntropyPool(EntropyPool pool, int capacity, int lowWatermark, int highWatermark,
+	                            int chunkLength) {
+		requireNonNull(pool, "pool == null");
+		requireThat(capacity > 0, "capacity <= 0: " + capacity);
+		requireThat(lowWatermark > 0, "lowWatermark <= 0: " + lowWatermark);
+		requireThat(highWatermark >= lowWatermark,
+		            "highWatermark < lowWatermark: " + highWatermark + " < " + lowWatermark);
+		requireThat(highWatermark <= capacity, "highWatermark > capacity: " + highWatermark + " > " + capacity);
+		requireThat(chunkLength > 0, "chunkLength <= 0: " + chunkLength);
+
+		this.pool = pool;
+		this.lowWatermark = lowWatermark;
+		this.highWatermark = highWatermark;
+		this.chunkLength = chunkLength;
+
+		reservoir = new byte[capacity];
+
+		refillThread = new Thread(this::runRefiller, "EntropyPool reservoir refiller");
+		refillThread.setDaemon(true);
+		refillThread.start();
+	}
+
+	@Override
+	public void injectEntropy(byte[] bytes, int entropyBits) {
+		synchronized (pool) {
+			pool.injectEntropy(bytes, entropyBits);
+		}
+
+		signalEntropyInjected();
+	}
+
+	@Override
+	public void injectEntropy(ByteBuffer source, int entropyBits) {
+		synchronized (pool) {
+			pool.injectEntropy(source, entropyBits);
+		}
+
+		signalEntropyInjected();
+	}
+
+	@Override
+	public byte[] extractEntropy(int numBytes) {
+		byte[] bytes = new byte[numBytes];
+		extractEntropy(bytes, 0, numBytes);
+		return bytes;
+	}
+
+	@Override
+	public void extractEntropy(byte[] bytes, int offset, int length) {
+		requireThat(length > 0, "length <= 0: " + length);
+
+		synchronized (lock) {
+			requireRefillerAlive();
+
+			if (level >= length) {
+				copyOut(bytes, offset, length);
+				hitCount++;
+				return;
+			}
+		}
+
+		synchronized (pool) {
+			synchronized (lock) {
+				requireRefillerAlive();
+
+				if (level >= length) {
+					copyOut(bytes, offset, length);
+					hitCount++;
+					return;
+				}
+
+				// Take the rest from the pool first, so a failure leaves the reservoir untouched
+				int fromReservoir = level;
+				pool.extractEntropy(bytes, offset + fromReservoir, length - fromReservoir);
+
+				copyOut(bytes, offset, fromReservoir);
+				missCount++;
+			}
+		}
+	}
+
+	@Override
+	public void extractEntropy(ByteBuffer target) {
+		int length = target.remaining();
+		requireThat(length > 0, "target.remaining() == 0");
+
+		synchronized (lock) {
+			requireRefillerAlive();
+
+			if (level >= length) {
+				copyOut(target, length);
+				hitCount++;
+				return;
+			}
+		}
+
+		synchronized (pool) {
+			synchronized (lock) {
+				requireRefillerAlive();
+
+				if (level >= length) {
+					copyOut(target, length);
+					hitCount++;
+					return;
+				}
+
+				// Take the rest from the pool first, so a failure leaves the reservoir untouched
+				int        fromReservoir = level;
+				ByteBuffer rest          = target.duplicate();
+				rest.position(target.position() + fromReservoir);
+				pool.extractEntropy(rest);
+
+				copyOut(target, fromReservoir);
+				target.position(rest.position());
+				missCount++;
+			}
+		}
+	}
+
+	@Override
+	public long getInjectedEntropy() {
+		synchronized (pool) {
+			return pool.getInjectedEntropy();
+		}
+	}
+
+	@Override
+	public long getExtractedEntropy() {
+		synchronized (pool) {
+			synchronized (lock) {
+				return pool.getExtractedEntropy() - level * 8L;
+			}
+		}
+	}
+
+	@Override
+	public long getAvailableEntropy() {
+		synchronized (pool) {
+			synchronized (lock) {
+				return pool.getAvailableEntropy() + level * 8L;
+			}
+		}
+	}
+
+	@Override
+	public void mix() {
+		synchronized (pool) {
+			pool.mix();
+		}
+	}
+
+	@Override
+	public void beginBatch() {
+		synchronized (pool) {
+			pool.beginBatch();
+		}
+	}
+
+	@Override
+	public void commitBatch() {
+		synchronized (pool) {
+			pool.commitBatch();
+		}
+	}
+
+	public int getCapacity() { return reservoir.length; }
+
+	public int getLowWatermark() { return lowWatermark; }
+
+	public int getHighWatermark() { return highWatermark; }
+
+	public int getLevel() {
+		synchronized (lock) {
+			return level;
+		}
+	}
+
+	public long getHitCount() {
+		synchronized (lock) {
+			return hitCount;
+		}
+	}
+
+	public long getMissCount() {
+		synchronized (lock) {
+			return missCount;
+		}
+	}
+
+	public long getServedBytes() {
+		synchronized (lock) {
+			return servedBytes;
+		}
+	}
+
+	public long getRefillCount() {
+		synchronized (lock) {
+			return refillCount;
+		}
+	}
+
+	/**
+	 * Returns the fraction of extractions that were served from the reservoir, or 0 if there were none yet.
+	 */
+	public double getHitRate() {
+		synchronized (lock) {
+			long total = hitCount + missCount;
+			return total == 0 ? 0 : hitCount / (double)total;
+		}
+	}
+
+	/**
+	 * Stops the refill thread and zeroes the reservoir.
+	 */
+	@Override
+	public void close() {
+		synchronized (lock) {
+			closed = true;
+			lock.notifyAll();
+		}
+
+		try {
+			refillThread.join();
+		} catch (InterruptedException ignored) {
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized (lock) {
+			Arrays.fill(reservoir, (byte)0);
+			readIndex = 0;
+			level = 0;
+		}
+	}
+
+	/** Must hold lock. */
+	private void requireRefillerAlive() {
+		if (refillFailure != null)
+			throw new IllegalStateException("The refill thread died", refillFailure);
+	}
+
+	/** Must hold lock, and {@code length} must not exceed the level. */
+	private void copyOut(byte[] bytes, int offset, int length) {
+		int first = Math.min(length, reservoir.length - readIndex);
+		System.arraycopy(reservoir, readIndex, bytes, offset, first);
+		System.arraycopy(reservoir, 0, bytes, offset + first, length - first);
+
+		consume(length);
+	}
+
+	/** Must hold lock, and {@code length} must not exceed the level. */
+	private void copyOut(ByteBuffer target, int length) {
+		int first = Math.min(length, reservoir.length - readIndex);
+		target.put(reservoir, readIndex, first);
+		target.put(reservoir, 0, length - first);
+
+		consume(length);
+	}
+
+	/** Must hold lock. Zeroes the bytes that were just copied out. */
+	private void consume(int length) {
+		int first = Math.min(length, reservoir.length - readIndex);
+		Arrays.fill(reservoir, readIndex, readIndex + first, (byte)0);
+		Arrays.fill(reservoir, 0, length - first, (byte)0);
+
+		readIndex = (readIndex + length) % reservoir.length;
+		level -= length;
+		servedBytes += length;
+
+		if (level < lowWatermark)
+			lock.notifyAll();
+	}
+
+	private void signalEntropyInjected() {
+		synchronized (lock) {
+			entropyInjected = true;
+			lock.notifyAll();
+		}
+	}
+
+	private void runRefiller() {
+		try {
+			while (true) {
+				synchronized (lock) {
+					while (!closed && level >= lowWatermark)
+						lock.wait();
+
+					if (closed)
+						return;
+				}
+
+				if (!refill()) {
+					// The pool ran dry. Injections through this front wake us up; poll for the ones that bypass it.
+					synchronized (lock) {
+						if (!closed && !entropyInjected)
+							lock.wait(DRY_POLL_INTERVAL_MILLIS);
+					}
+				}
+			}
+		} catch (InterruptedException | RuntimeException | Error ex) {
+			Logger.getGlobal().log(Level.SEVERE, "Reservoir refill thread died", ex);
+
+			synchronized (lock) {
+				refillFailure = ex;
+			}
+		}
+	}
+
+	/**
+	 * Extracts chunks from the pool until the high watermark is reached.
+	 *
+	 * @return false if the pool has too little entropy to continue
+	 */
+	private boolean refill() {
+		while (true) {
+			synchronized (pool) {
+				int writeIndex;
+				int numBytes;
+				synchronized (lock) {
+					if (closed || level >= highWatermark)
+						return true;
+
+					entropyInjected = false;
+
+					writeIndex = (readIndex + level) % reservoir.length;
+					numBytes = Math.min(chunkLength, highWatermark - level);
+					numBytes = Math.min(numBytes, reservoir.length - writeIndex);
+				}
+
+				numBytes = (int)Math.min(numBytes, pool.getAvailableEntropy() / 8);
+				if (numBytes <= 0)
+					return false;
+
+				// Only this thread writes outside [readIndex, readIndex + level), so no need for the lock here
+				pool.extractEntropy(reservoir, writeIndex, numBytes);
+
+				synchronized (lock) {
+					level += numBytes;
+					refillCount++;
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		String poolString;
+		synchronized (pool) {
+			poolString = pool.toString();
+		}
+
+		return getClass().getSimpleName() + "[level=" + getLevel() + '/' + reservoir.length +
+		       ", hitRate=" + getHitRate() + ", pool=" + poolString + ']';
+	}
+}
@@ -19,10 +19,13 @@
 
 package org.digitalmodular.entropypool;
 
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.logging.Level;
 
 import org.digitalmodular.utilities.LogTimer;
+import static org.digitalmodular.utilities.ArrayUtilities.xor;
 
 /**
  * @author Mark Jeronimus
@@ -31,15 +34,34 @@ import org.digitalmodular.utilities.LogTimer;
  */
 // Created 2016-08-02
 public class WhitenMixer implements EntropyPoolMixer {
+	/**
+	 * SP 800-90A limits a single CTR_DRBG request to 2^13 bits for TDEA (and 2^19 for AES), so keep every
+	 * {@link SecureRandom#nextBytes(byte[])} within the smallest limit.
+	 */
+	public static final int KEYSTREAM_LENGTH = 1024;
+
+	private byte[]     keystream;
+	private ByteBuffer keystreamView;
+
 	@Override
 	public void mix(EntropyPool2 pool) {
 		LogTimer.start();
 
 		SecureRandom random = pool.getSecureRandom();
-		byte[]       buffer = pool.buffer();
+		ByteBuffer   buffer = pool.storage().buffer();
+
+		if (keystream == null) {
+			keystream = new byte[KEYSTREAM_LENGTH];
+			keystreamView = ByteBuffer.wrap(keystream).order(buffer.order());
+		}
+
+		for (int offset = 0; offset < buffer.capacity(); offset += KEYSTREAM_LENGTH) {
+			random.nextBytes(keystream);
+
+			xor(buffer, offset, keystreamView, 0, Math.min(KEYSTREAM_LENGTH, buffer.capacity() - offset));
+		}
 
-		for (int i = 0; i < buffer.length; i++)
-			buffer[i] ^= (byte)random.nextInt(0x100);
+		Arrays.fill(keystream, (byte)0);
 
 		LogTimer.finishAndLog(Level.FINER, "Whitened the Entropy Pool in {0} seconds");
 	}
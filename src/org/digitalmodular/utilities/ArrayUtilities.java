@@ -20,6 +20,7 @@
 package org.digitalmodular.utilities;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Random;
 
@@ -52,6 +53,28 @@ public enum ArrayUtilities {
 		return array;
 	}
 
+	/**
+	 * XORs {@code length} bytes from {@code source} at the absolute index {@code sourceIndex} into {@code target} at
+	 * the absolute index {@code targetIndex}, eight bytes at a time where possible. The positions are not changed.
+	 * <p>
+	 * Nothing is allocated, so to XOR arrays in a loop, wrap them once and pass the same views every time.
+	 */
+	public static void xor(ByteBuffer target, int targetIndex, ByteBuffer source, int sourceIndex, int length) {
+		boolean swap = source.order() != target.order();
+
+		int i = 0;
+		for (; i <= length - 8; i += 8) {
+			long sourceValue = source.getLong(sourceIndex + i);
+			if (swap)
+				sourceValue = Long.reverseBytes(sourceValue);
+
+			target.putLong(targetIndex + i, target.getLong(targetIndex + i) ^ sourceValue);
+		}
+
+		for (; i < length; i++)
+			target.put(targetIndex + i, (byte)(target.get(targetIndex + i) ^ source.get(sourceIndex + i)));
+	}
+
 	public static int getLengthBeforeWrap(int arrayLength, int offset, int length) {
 		return Math.min(length, arrayLength - offset);
 	}
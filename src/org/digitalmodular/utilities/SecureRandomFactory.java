@@ -26,8 +26,11 @@ import java.util.stream.IntStream;
 import java.util.stream.LongStream;
 
 import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.engines.AESEngine;
 import org.bouncycastle.crypto.engines.AESFastEngine;
 import org.bouncycastle.crypto.engines.DESedeEngine;
+import org.bouncycastle.crypto.prng.EntropySourceProvider;
+import org.bouncycastle.crypto.prng.SP800SecureRandom;
 import org.bouncycastle.crypto.prng.SP800SecureRandomBuilder;
 
 /**
@@ -98,6 +101,27 @@ public enum SecureRandomFactory {
 		return secureRandom;
 	}
 
+	/**
+	 * Builds an AES CTR_DRBG that takes its seed material from the specified provider instead of another
+	 * {@link SecureRandom}. The security strength equals the key length.
+	 *
+	 * @param nonce a value that is never repeated for the same entropy source, or {@code null}
+	 */
+	public static SP800SecureRandom newSP800CTR(EntropySourceProvider entropySourceProvider, int keyLength,
+	                                            byte[] nonce) {
+		BlockCipher cipher = AESEngine.newInstance();
+		validateKeyLengthForSP800CTR(keyLength, cipher);
+
+		int securityStrength = getSecurityStrengthForSP800(keyLength, cipher);
+
+		SP800SecureRandomBuilder secureRandomBuilder = new SP800SecureRandomBuilder(entropySourceProvider);
+		secureRandomBuilder.setPersonalizationString(null);
+		secureRandomBuilder.setSecurityStrength(securityStrength);
+		secureRandomBuilder.setEntropyBitsRequired(securityStrength);
+
+		return secureRandomBuilder.buildCTR(cipher, keyLength, nonce, false);
+	}
+
 	private static int getArgsValue(String[] parts, int index, int defaultValue) {
 		return parts.length <= index ? defaultValue : Integer.parseInt(parts[index]);
 	}
@@ -117,7 +141,7 @@ public enum SecureRandomFactory {
 	}
 
 	private static int getDefaultKeyLengthForSP800CTR(BlockCipher cipher) {
-		if (cipher instanceof AESFastEngine) {
+		if (isAES(cipher)) {
 			return 256;
 		} else {
 			return 168;
@@ -125,7 +149,7 @@ public enum SecureRandomFactory {
 	}
 
 	private static void validateKeyLengthForSP800CTR(int keyLength, BlockCipher cipher) {
-		if (cipher instanceof AESFastEngine) {
+		if (isAES(cipher)) {
 			if (keyLength != 128 && keyLength != 192 && keyLength != 256)
 				throw new IllegalArgumentException("keyLength should be one of [128, 192, 256] for AES: " + keyLength);
 		} else {
@@ -135,13 +159,18 @@ public enum SecureRandomFactory {
 	}
 
 	private static int getSecurityStrengthForSP800(int keyLength, BlockCipher cipher) {
-		if (cipher instanceof AESFastEngine) {
+		if (isAES(cipher)) {
 			return keyLength;
 		} else {
 			return 112;
 		}
 	}
 
+	/** Both {@link AESEngine} and {@link AESFastEngine} count as AES. */
+	private static boolean isAES(BlockCipher cipher) {
+		return "AES".equals(cipher.getAlgorithmName());
+	}
+
 	private static SecureRandom getEntropySourceForSP800(String[] parts, int index) throws NoSuchAlgorithmException {
 		String       entropySourceAlgorithm = parts.length <= index ? "Strong" : parts[index];
 		SecureRandom entropySource          = getInstance(entropySourceAlgorithm);
@@ -19,6 +19,7 @@
 
 package org.digitalmodular.utilities.container;
 
+import java.nio.ByteBuffer;
 import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.SecureRandom;
@@ -128,26 +129,90 @@ public enum MessageDigestUtilities {
 	}
 
 	public static void hashBlockFromBuffer(MessageDigest digest, byte[] buffer, int byteOffset) {
+		hashBlockFromBuffer(digest, buffer, 0, buffer.length, byteOffset);
+	}
+
+	/**
+	 * Hashes one digest-sized block from the region {@code [start, start + length)} of {@code buffer}, wrapping around
+	 * within the region.
+	 */
+	public static void hashBlockFromBuffer(MessageDigest digest, byte[] buffer, int start, int length,
+	                                       int byteOffset) {
 		int digestSize = digest.getDigestLength();
 
-		int lengthBeforeWrap = getLengthBeforeWrap(buffer.length, byteOffset, digestSize);
-		int lengthAfterWrap  = getLengthAfterWrap(buffer.length, byteOffset, digestSize);
+		int lengthBeforeWrap = getLengthBeforeWrap(length, byteOffset, digestSize);
+		int lengthAfterWrap  = getLengthAfterWrap(length, byteOffset, digestSize);
 
-		digest.update(buffer, byteOffset, lengthBeforeWrap);
-		digest.update(buffer, 0, lengthAfterWrap);
+		digest.update(buffer, start + byteOffset, lengthBeforeWrap);
+		digest.update(buffer, start, lengthAfterWrap);
 	}
 
 	public static void getDigestToBuffer(MessageDigest digest, byte[] buffer, int byteOffset, byte[] digestBuffer) {
+		getDigestToBuffer(digest, buffer, 0, buffer.length, byteOffset, digestBuffer);
+	}
+
+	/**
+	 * Writes the digest to the region {@code [start, start + length)} of {@code buffer}, wrapping around within the
+	 * region.
+	 */
+	public static void getDigestToBuffer(MessageDigest digest, byte[] buffer, int start, int length, int byteOffset,
+	                                     byte[] digestBuffer) {
+		int digestSize = digest.getDigestLength();
+
+		try {
+			digest.digest(digestBuffer, 0, digestSize);
+
+			int lengthBeforeWrap = getLengthBeforeWrap(length, byteOffset, digestSize);
+			int lengthAfterWrap  = getLengthAfterWrap(length, byteOffset, digestSize);
+
+			System.arraycopy(digestBuffer, 0, buffer, start + byteOffset, lengthBeforeWrap);
+			System.arraycopy(digestBuffer, lengthBeforeWrap, buffer, start, lengthAfterWrap);
+
+			Arrays.fill(digestBuffer, (byte)0);
+		} catch (DigestException ex) {
+			throw new InternalError("This shouldn't happen", ex);
+		}
+	}
+
+	/**
+	 * Hashes one digest-sized block from the region {@code [start, start + length)} of {@code buffer}, wrapping around
+	 * within the region. The position and limit of {@code buffer} are changed, so pass a private duplicate.
+	 */
+	public static void hashBlockFromBuffer(MessageDigest digest, ByteBuffer buffer, int start, int length,
+	                                       int byteOffset) {
+		int digestSize = digest.getDigestLength();
+
+		int lengthBeforeWrap = getLengthBeforeWrap(length, byteOffset, digestSize);
+		int lengthAfterWrap  = getLengthAfterWrap(length, byteOffset, digestSize);
+
+		buffer.limit(start + byteOffset + lengthBeforeWrap);
+		buffer.position(start + byteOffset);
+		digest.update(buffer);
+
+		buffer.limit(start + lengthAfterWrap);
+		buffer.position(start);
+		digest.update(buffer);
+	}
+
+	/**
+	 * Writes the digest to the region {@code [start, start + length)} of {@code buffer}, wrapping around within the
+	 * region. The position and limit of {@code buffer} are changed, so pass a private duplicate.
+	 */
+	public static void getDigestToBuffer(MessageDigest digest, ByteBuffer buffer, int start, int length,
+	                                     int byteOffset, byte[] digestBuffer) {
 		int digestSize = digest.getDigestLength();
 
 		try {
 			digest.digest(digestBuffer, 0, digestSize);
 
-			int lengthBeforeWrap = getLengthBeforeWrap(buffer.length, byteOffset, digestSize);
-			int lengthAfterWrap  = getLengthAfterWrap(buffer.length, byteOffset, digestSize);
+			int lengthBeforeWrap = getLengthBeforeWrap(length, byteOffset, digestSize);
+			int lengthAfterWrap  = getLengthAfterWrap(length, byteOffset, digestSize);
 
-			System.arraycopy(digestBuffer, 0, buffer, byteOffset, lengthBeforeWrap);
-			System.arraycopy(digestBuffer, lengthBeforeWrap, buffer, 0, lengthAfterWrap);
+			buffer.clear();
+			buffer.position(start + byteOffset);
+			buffer.put(digestBuffer, 0, lengthBeforeWrap);
+			buffer.position(start);
+			buffer.put(digestBuffer, lengthBeforeWrap, lengthAfterWrap);
 
 			Arrays.fill(digestBuffer, (byte)0);
 		} catch (DigestException ex) {
@@ -22,8 +22,10 @@ package org.digitalmodular.utilities.io;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import javax.crypto.Cipher;
 
 import org.digitalmodular.utilities.container.LoggingCount;
@@ -36,6 +38,8 @@ import org.digitalmodular.utilities.container.LoggingReference;
 public enum DataIO {
 	;
 
+	private static final int BUFFER_CHUNK_LENGTH = 8192;
+
 	public static void writeObject(DataOutput out, Object value) throws IOException {
 		if (value instanceof Byte)
 			out.writeByte((Byte)value);
@@ -83,6 +87,55 @@ public enum DataIO {
 		return value;
 	}
 
+	/**
+	 * Writes the remaining bytes of {@code value} in the same format as {@link #writeByteArray(DataOutput, byte[])},
+	 * without copying them to one big array first. The position is not changed.
+	 */
+	public static void writeByteBuffer(DataOutput out, ByteBuffer value) throws IOException {
+		ByteBuffer source = value.duplicate();
+		byte[]     chunk  = new byte[Math.min(BUFFER_CHUNK_LENGTH, source.remaining())];
+
+		out.writeInt(source.remaining());
+		while (source.hasRemaining()) {
+			int length = Math.min(chunk.length, source.remaining());
+			source.get(chunk, 0, length);
+			out.write(chunk, 0, length);
+		}
+
+		Arrays.fill(chunk, (byte)0);
+	}
+
+	/**
+	 * Reads exactly {@code value.remaining()} bytes into {@code value}, without reading them into one big array first.
+	 * The position is not changed.
+	 */
+	public static void readByteBuffer(DataInput in, ByteBuffer value) throws IOException {
+		ByteBuffer target = value.duplicate();
+		byte[]     chunk  = new byte[Math.min(BUFFER_CHUNK_LENGTH, target.remaining())];
+
+		while (target.hasRemaining()) {
+			int length = Math.min(chunk.length, target.remaining());
+			in.readFully(chunk, 0, length);
+			target.put(chunk, 0, length);
+		}
+
+		Arrays.fill(chunk, (byte)0);
+	}
+
+	public static void writeIntArray(DataOutput out, int[] value) throws IOException {
+		out.writeInt(value.length);
+		for (int i : value)
+			out.writeInt(i);
+	}
+
+	public static int[] readIntArray(DataInput in) throws IOException {
+		int   length = in.readInt();
+		int[] value  = new int[length];
+		for (int i = 0; i < length; i++)
+			value[i] = in.readInt();
+		return value;
+	}
+
 	public static void writeLoggingCount(DataOutput out, LoggingCount value) throws IOException {
 		out.writeInt(value.get());
 		out.writeLong(value.getCountDate());
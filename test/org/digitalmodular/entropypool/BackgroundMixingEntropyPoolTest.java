@@ -0,0 +1,97 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-30
+public class BackgroundMixingEntropyPoolTest {
+	private static final int POOL_LENGTH = 4096;
+
+	@BeforeClass
+	public static void registerProvider() {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+
+	@Test(timeout = 10_000)
+	public void testAwaitMixedCreditsEntropy() throws Exception {
+		EntropyPool2                pool       = new EntropyPool2(POOL_LENGTH);
+		BackgroundMixingEntropyPool background = new BackgroundMixingEntropyPool(pool);
+		try {
+			long sequence = 0;
+			for (int i = 0; i < 10; i++)
+				sequence = background.submit(new byte[1000], 800);
+
+			background.awaitMixed(sequence);
+			assertTrue(background.getMixedSequence() >= sequence);
+			assertEquals(8000, background.getInjectedEntropy());
+		} finally {
+			background.close();
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testSubmitAfterCloseFails() throws Exception {
+		BackgroundMixingEntropyPool background = new BackgroundMixingEntropyPool(new EntropyPool2(POOL_LENGTH));
+		background.close();
+
+		background.submit(new byte[16], 0);
+	}
+
+	@Test(timeout = 10_000)
+	public void testErrorInMixerFailsBlockedProducer() throws Exception {
+		EntropyPool2 pool = new EntropyPool2(POOL_LENGTH) {
+			@Override
+			void mixNow() {
+				throw new InternalError("mix failed");
+			}
+		};
+		BackgroundMixingEntropyPool background = new BackgroundMixingEntropyPool(pool);
+
+		try {
+			// Both halves fill up, so the producer ends up waiting for the dead mixer
+			for (int i = 0; i < 100; i++)
+				background.submit(new byte[POOL_LENGTH], 0);
+
+			fail("submit() didn't notice the dead mixer");
+		} catch (IllegalStateException ex) {
+			assertTrue(ex.getCause() instanceof InternalError);
+		}
+
+		try {
+			background.awaitMixed(background.getSubmittedSequence());
+			fail("awaitMixed() didn't notice the dead mixer");
+		} catch (IllegalStateException ex) {
+			assertTrue(ex.getCause() instanceof InternalError);
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-30
+public class EncryptedEntropyPoolFileTest {
+	private static final int ITERATIONS = 1234;
+
+	private File directory;
+	private File poolFile;
+	private File bakFile;
+	private File tempFile;
+
+	private EntropyPool2 pool;
+
+	@BeforeClass
+	public static void registerProvider() {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+
+	@Before
+	public void createPool() throws Exception {
+		directory = Files.createTempDirectory("encrypted").toFile();
+		poolFile = new File(directory, "pool.bin");
+		bakFile = new File(directory, "pool.bak");
+		tempFile = new File(directory, "pool.tmp");
+
+		// Several chunks, the last one partial
+		pool = new EntropyPool2(3 * EncryptedEntropyPoolFile.DEFAULT_CHUNK_LENGTH + 1000);
+		pool.injectEntropy(new byte[4096], 4096);
+	}
+
+	@After
+	public void deleteDirectory() {
+		for (File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	@Test
+	public void testRoundTripWithKeyFile() throws IOException {
+		File keyFile = new File(directory, "pool.key");
+		PoolFileKey.generateKeyFile(keyFile, new SecureRandom());
+		PoolFileKey key = PoolFileKey.fromKeyFile(keyFile);
+
+		EncryptedEntropyPoolFile.saveToFile(pool, poolFile, bakFile, tempFile, key);
+
+		assertSamePool(pool, EncryptedEntropyPoolFile.loadFromFile(poolFile, key));
+	}
+
+	@Test
+	public void testRoundTripWithPassphrase() throws IOException {
+		EncryptedEntropyPoolFile.saveToFile(pool, poolFile, bakFile, tempFile, passphraseKey("passphrase"));
+
+		assertSamePool(pool, EncryptedEntropyPoolFile.loadFromFile(poolFile, passphraseKey("passphrase")));
+	}
+
+	@Test(expected = IOException.class)
+	public void testWrongPassphraseIsRejected() throws IOException {
+		EncryptedEntropyPoolFile.saveToFile(pool, poolFile, bakFile, tempFile, passphraseKey("passphrase"));
+
+		EncryptedEntropyPoolFile.loadFromFile(poolFile, passphraseKey("Passphrase"));
+	}
+
+	@Test(expected = IOException.class)
+	public void testModifiedChunkIsRejected() throws IOException {
+		PoolFileKey key = passphraseKey("passphrase");
+		EncryptedEntropyPoolFile.saveToFile(pool, poolFile, bakFile, tempFile, key);
+
+		try (RandomAccessFile file = new RandomAccessFile(poolFile, "rw")) {
+			long position = file.length() - EncryptedEntropyPoolFile.DEFAULT_CHUNK_LENGTH;
+			file.seek(position);
+			int b = file.read();
+			file.seek(position);
+			file.write(b ^ 1);
+		}
+
+		EncryptedEntropyPoolFile.loadFromFile(poolFile, key);
+	}
+
+	@Test(expected = IOException.class)
+	public void testTruncatedFileIsRejected() throws IOException {
+		PoolFileKey key = passphraseKey("passphrase");
+		EncryptedEntropyPoolFile.saveToFile(pool, poolFile, bakFile, tempFile, key);
+
+		try (RandomAccessFile file = new RandomAccessFile(poolFile, "rw")) {
+			file.setLength(file.length() - 1000);
+		}
+
+		EncryptedEntropyPoolFile.loadFromFile(poolFile, key);
+	}
+
+	@Test(expected = IOException.class, timeout = 10_000)
+	public void testHugeIterationCountIsRejected() throws IOException {
+		PoolFileKey key = passphraseKey("passphrase");
+		EncryptedEntropyPoolFile.saveToFile(pool, poolFile, bakFile, tempFile, key);
+
+		replaceIterations(Integer.MAX_VALUE);
+
+		EncryptedEntropyPoolFile.loadFromFile(poolFile, key);
+	}
+
+	@Test(expected = IOException.class)
+	public void testNegativeIterationCountIsRejected() throws IOException {
+		PoolFileKey key = passphraseKey("passphrase");
+		EncryptedEntropyPoolFile.saveToFile(pool, poolFile, bakFile, tempFile, key);
+
+		replaceIterations(-1);
+
+		EncryptedEntropyPoolFile.loadFromFile(poolFile, key);
+	}
+
+	private static PoolFileKey passphraseKey(String passphrase) {
+		return PoolFileKey.fromPassphrase(passphrase.toCharArray(), ITERATIONS);
+	}
+
+	private void replaceIterations(int iterations) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(poolFile, "rw")) {
+			// The iteration count is the only occurrence of ITERATIONS in the plaintext header
+			for (int position = 0; ; position++) {
+				file.seek(position);
+				if (file.readInt() == ITERATIONS) {
+					file.seek(position);
+					file.writeInt(iterations);
+					return;
+				}
+			}
+		}
+	}
+
+	private static void assertSamePool(EntropyPool2 expected, EntropyPool2 actual) {
+		assertEquals(expected.getAvailableEntropy(), actual.getAvailableEntropy());
+		assertEquals(expected.getInjectedEntropy(), actual.getInjectedEntropy());
+		assertEquals(expected.storage().length(), actual.storage().length());
+		assertEquals(0, expected.storage().buffer().compareTo(actual.storage().buffer()));
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-30
+public class EntropyPool2FileV3Test {
+	private File directory;
+	private File poolFile;
+	private File bakFile;
+	private File tempFile;
+
+	private EntropyPool2 pool;
+
+	@BeforeClass
+	public static void registerProvider() {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+
+	@Before
+	public void createPool() throws Exception {
+		directory = Files.createTempDirectory("poolfile").toFile();
+		poolFile = new File(directory, "pool.bin");
+		bakFile = new File(directory, "pool.bak");
+		tempFile = new File(directory, "pool.tmp");
+
+		// Several chunks, the last one partial
+		pool = new EntropyPool2(2 * EntropyPool2FileV3.DEFAULT_CHUNK_LENGTH + 1000);
+		pool.injectEntropy(new byte[4096], 4096);
+	}
+
+	@After
+	public void deleteDirectory() {
+		for (File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		pool.saveToFile(poolFile, bakFile, tempFile);
+
+		assertSamePool(pool, EntropyPool2.loadFromFile(poolFile));
+	}
+
+	@Test
+	public void testRoundTripIntoDirectStorage() throws IOException {
+		pool.saveToFile(poolFile, bakFile, tempFile);
+
+		EntropyPool2 loaded = EntropyPool2.loadFromFile(poolFile, DirectPoolStorage::new);
+		assertTrue(loaded.storage() instanceof DirectPoolStorage);
+		assertSamePool(pool, loaded);
+	}
+
+	@Test
+	public void testSaveKeepsPreviousFileAsBackup() throws IOException {
+		pool.saveToFile(poolFile, bakFile, tempFile);
+		EntropyPool2 previous = EntropyPool2.loadFromFile(poolFile);
+
+		pool.injectEntropy(new byte[4096], 4096);
+		pool.saveToFile(poolFile, bakFile, tempFile);
+
+		assertSamePool(previous, EntropyPool2.loadFromFile(bakFile));
+		assertSamePool(pool, EntropyPool2.loadFromFile(poolFile));
+		assertFalse(tempFile.exists());
+	}
+
+	@Test(expected = IOException.class)
+	public void testModifiedHeaderIsRejected() throws IOException {
+		pool.saveToFile(poolFile, bakFile, tempFile);
+
+		flipBit(20);
+
+		EntropyPool2.loadFromFile(poolFile);
+	}
+
+	@Test(expected = IOException.class)
+	public void testModifiedChunkIsRejected() throws IOException {
+		pool.saveToFile(poolFile, bakFile, tempFile);
+
+		flipBit(poolFile.length() - EntropyPool2FileV3.DEFAULT_CHUNK_LENGTH - 1000);
+
+		EntropyPool2.loadFromFile(poolFile);
+	}
+
+	@Test(expected = IOException.class)
+	public void testTruncatedFileIsRejected() throws IOException {
+		pool.saveToFile(poolFile, bakFile, tempFile);
+
+		try (RandomAccessFile file = new RandomAccessFile(poolFile, "rw")) {
+			file.setLength(file.length() - 1);
+		}
+
+		EntropyPool2.loadFromFile(poolFile);
+	}
+
+	private void flipBit(long position) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(poolFile, "rw")) {
+			file.seek(position);
+			int b = file.read();
+			file.seek(position);
+			file.write(b ^ 1);
+		}
+	}
+
+	private static void assertSamePool(EntropyPool2 expected, EntropyPool2 actual) {
+		assertEquals(expected.getAvailableEntropy(), actual.getAvailableEntropy());
+		assertEquals(expected.getInjectedEntropy(), actual.getInjectedEntropy());
+		assertEquals(expected.getModifyCount(), actual.getModifyCount());
+		assertEquals(expected.storage().length(), actual.storage().length());
+		assertEquals(0, expected.storage().buffer().compareTo(actual.storage().buffer()));
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-30
+public class EntropyPoolDaemonTest {
+	private File   directory;
+	private File   tokenFile;
+	private byte[] token;
+
+	private EntropyPool2      pool;
+	private EntropyPoolDaemon daemon;
+
+	@BeforeClass
+	public static void registerProvider() {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+
+	@Before
+	public void startDaemon() throws Exception {
+		directory = Files.createTempDirectory("daemon").toFile();
+		tokenFile = new File(directory, "token");
+		token = EntropyPoolDaemon.readOrCreateToken(tokenFile);
+
+		pool = new EntropyPool2(4096);
+		daemon = newDaemon(true);
+	}
+
+	@After
+	public void stopDaemon() throws IOException {
+		daemon.close();
+
+		for (File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	@Test
+	public void testTokenFileIsReused() throws IOException {
+		assertEquals(EntropyPoolDaemon.TOKEN_LENGTH, token.length);
+		assertArrayEquals(token, EntropyPoolDaemon.readOrCreateToken(tokenFile));
+	}
+
+	@Test(expected = IOException.class)
+	public void testTokenFileReadableByOthersIsRefused() throws IOException {
+		Files.setPosixFilePermissions(tokenFile.toPath(), PosixFilePermissions.fromString("rw-r--r--"));
+
+		EntropyPoolDaemon.readToken(tokenFile);
+	}
+
+	@Test(timeout = 10_000)
+	public void testAuthenticatedClientIsServed() throws IOException {
+		try (EntropyPoolClient client = new EntropyPoolClient(daemon.getAddress(), token)) {
+			client.injectEntropy(new byte[1000], 8000);
+			assertEquals(8000, client.getAvailableEntropy());
+
+			assertEquals(100, client.extractEntropy(100).length);
+			assertEquals(800, client.getExtractedEntropy());
+		}
+	}
+
+	@Test(expected = IOException.class, timeout = 10_000)
+	public void testWrongTokenIsRejected() throws IOException {
+		byte[] wrongToken = token.clone();
+		wrongToken[0]++;
+
+		new EntropyPoolClient(daemon.getAddress(), wrongToken).close();
+	}
+
+	@Test(timeout = 10_000)
+	public void testUnauthenticatedRequestClosesConnection() throws IOException {
+		try (SocketChannel channel = SocketChannel.open(daemon.getAddress())) {
+			ByteBuffer request = ByteBuffer.allocate(EntropyPoolDaemon.FRAME_HEADER_LENGTH);
+			request.put(EntropyPoolDaemon.REQUEST_STATUS).putInt(0).flip();
+			channel.write(request);
+
+			assertEquals(-1, channel.read(ByteBuffer.allocate(EntropyPoolDaemon.STATUS_LENGTH)));
+		}
+
+		assertEquals(0, pool.getInjectedEntropy());
+	}
+
+	@Test(expected = IOException.class, timeout = 10_000)
+	public void testClaimLargerThanInjectedBytesIsRejected() throws IOException {
+		try (EntropyPoolClient client = new EntropyPoolClient(daemon.getAddress(), token)) {
+			client.injectEntropy(new byte[4], 33);
+		}
+	}
+
+	@Test(timeout = 10_000)
+	public void testInjectedEntropyIsNotCreditedWhenDisabled() throws IOException {
+		daemon.close();
+		daemon = newDaemon(false);
+
+		byte[] before = new byte[pool.storage().length()];
+		pool.storage().buffer().duplicate().get(before);
+
+		byte[] bytes = new byte[1000];
+		new Random(1).nextBytes(bytes);
+
+		try (EntropyPoolClient client = new EntropyPoolClient(daemon.getAddress(), token)) {
+			client.injectEntropy(bytes, 8000);
+			assertEquals(0, client.getAvailableEntropy());
+		}
+
+		// Still mixed in
+		byte[] after = new byte[pool.storage().length()];
+		pool.storage().buffer().duplicate().get(after);
+		assertFalse(Arrays.equals(before, after));
+	}
+
+	private EntropyPoolDaemon newDaemon(boolean creditInjectedEntropy) throws IOException {
+		return new EntropyPoolDaemon(pool, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), token,
+		                             creditInjectedEntropy);
+	}
+}
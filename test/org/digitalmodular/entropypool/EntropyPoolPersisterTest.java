@@ -0,0 +1,111 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-30
+public class EntropyPoolPersisterTest {
+	private File directory;
+	private File poolFile;
+	private File bakFile;
+	private File tempFile;
+	private File openMarkerFile;
+
+	@BeforeClass
+	public static void registerProvider() {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("persister").toFile();
+		poolFile = new File(directory, "pool.bin");
+		bakFile = new File(directory, "pool.bak");
+		tempFile = new File(directory, "pool.tmp");
+		openMarkerFile = new File(poolFile.getPath() + EntropyPoolPersister.OPEN_MARKER_SUFFIX);
+	}
+
+	@After
+	public void deleteDirectory() {
+		for (File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	@Test
+	public void testCloseSavesAndRemovesOpenMarker() throws Exception {
+		EntropyPool2 pool = EntropyPool2.newInstance();
+		pool.saveToFile(poolFile, bakFile, tempFile);
+
+		EntropyPoolPersister persister = new EntropyPoolPersister(pool, poolFile, bakFile, tempFile);
+		assertTrue(openMarkerFile.exists());
+
+		synchronized (pool) {
+			pool.injectEntropy(new byte[1024], 1024);
+		}
+
+		persister.close();
+		assertFalse(openMarkerFile.exists());
+		assertFalse(persister.isDirty());
+		assertEquals(1024, EntropyPool2.loadFromFile(poolFile).getInjectedEntropy());
+	}
+
+	@Test
+	public void testUncleanShutdownDiscardsEntropyAndChangesPool() throws Exception {
+		EntropyPool2 pool = EntropyPool2.newInstance();
+		pool.injectEntropy(new byte[4096], 4096);
+		pool.saveToFile(poolFile, bakFile, tempFile);
+
+		// A previous run that crashed before closing its persister
+		Files.createFile(openMarkerFile.toPath());
+
+		EntropyPool2 replayed  = EntropyPool2.loadFromFile(poolFile);
+		EntropyPool2 recovered = EntropyPool2.loadFromFile(poolFile);
+		assertEquals(4096, recovered.getAvailableEntropy());
+
+		EntropyPoolPersister persister = new EntropyPoolPersister(recovered, poolFile, bakFile, tempFile);
+		assertEquals(0, recovered.getAvailableEntropy());
+		assertNotEquals(0, replayed.storage().buffer().compareTo(recovered.storage().buffer()));
+		assertTrue(persister.isDirty());
+
+		persister.close();
+		assertFalse(openMarkerFile.exists());
+		assertEquals(0, EntropyPool2.loadFromFile(poolFile).getAvailableEntropy());
+	}
+}
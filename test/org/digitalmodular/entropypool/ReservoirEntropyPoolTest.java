@@ -0,0 +1,140 @@
+/*
+ * This file is part of EntropyPool2.
+ *
+ * Copyleft 2016 Mark Jeronimus. All Rights Reversed.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.digitalmodular.entropypool;
+
+import java.nio.ByteBuffer;
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Mark Jeronimus
+ * @version 2.0
+ * @since 2.0
+ */
+// Created 2016-08-30
+public class ReservoirEntropyPoolTest {
+	private static final int POOL_LENGTH      = 4096;
+	private static final int RESERVOIR_LENGTH = 1024;
+
+	private EntropyPool2         pool;
+	private ReservoirEntropyPool reservoir;
+
+	@BeforeClass
+	public static void registerProvider() {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+
+	@Before
+	public void createReservoir() throws Exception {
+		pool = new EntropyPool2(POOL_LENGTH);
+		pool.injectEntropy(new byte[POOL_LENGTH], POOL_LENGTH * 8);
+
+		reservoir = new ReservoirEntropyPool(pool, RESERVOIR_LENGTH, RESERVOIR_LENGTH / 4, RESERVOIR_LENGTH, 256);
+		awaitLevel(RESERVOIR_LENGTH);
+	}
+
+	@After
+	public void closeReservoir() {
+		reservoir.close();
+	}
+
+	@Test(timeout = 10_000)
+	public void testSmallExtractionIsServedFromReservoir() {
+		reservoir.extractEntropy(16);
+
+		assertEquals(1, reservoir.getHitCount());
+		assertEquals(0, reservoir.getMissCount());
+		assertEquals(POOL_LENGTH * 8 - 16 * 8, reservoir.getAvailableEntropy());
+	}
+
+	@Test(timeout = 10_000)
+	public void testAllAvailableEntropyCanBeExtracted() {
+		assertEquals(POOL_LENGTH * 8, reservoir.getAvailableEntropy());
+
+		byte[] bytes = reservoir.extractEntropy(POOL_LENGTH);
+
+		assertEquals(POOL_LENGTH, bytes.length);
+		assertEquals(0, reservoir.getAvailableEntropy());
+		assertEquals(0, reservoir.getLevel());
+		assertEquals(1, reservoir.getMissCount());
+	}
+
+	@Test(timeout = 10_000)
+	public void testAllAvailableEntropyCanBeExtractedIntoByteBuffer() {
+		ByteBuffer target = ByteBuffer.allocateDirect(POOL_LENGTH + 10);
+		target.position(10);
+
+		reservoir.extractEntropy(target);
+
+		assertEquals(POOL_LENGTH + 10, target.position());
+		assertEquals(0, reservoir.getAvailableEntropy());
+	}
+
+	@Test(timeout = 10_000)
+	public void testInputStreamReadsAllAdvertisedEntropy() {
+		EntropyPoolInputStream in = new EntropyPoolInputStream(reservoir);
+
+		assertEquals(POOL_LENGTH, in.read(new byte[POOL_LENGTH * 2], 0, POOL_LENGTH * 2));
+		assertEquals(-1, in.read());
+	}
+
+	@Test(timeout = 10_000)
+	public void testRefillFailureIsSurfaced() throws Exception {
+		EntropyPool2 failingPool = new EntropyPool2(POOL_LENGTH) {
+			@Override
+			public void extractEntropy(byte[] bytes, int offset, int length) {
+				throw new UnsupportedOperationException("extract failed");
+			}
+		};
+		failingPool.injectEntropy(new byte[POOL_LENGTH], POOL_LENGTH * 8);
+
+		ReservoirEntropyPool failing = new ReservoirEntropyPool(failingPool, RESERVOIR_LENGTH, RESERVOIR_LENGTH / 4,
+		                                                        RESERVOIR_LENGTH, 256);
+		try {
+			// Until the refill thread has died, a miss fails in the pool itself
+			while (true) {
+				try {
+					failing.extractEntropy(16);
+					fail("Extraction from a failing pool succeeded");
+				} catch (UnsupportedOperationException ignored) {
+					Thread.sleep(10);
+				} catch (IllegalStateException ex) {
+					assertTrue(ex.getCause() instanceof UnsupportedOperationException);
+					break;
+				}
+			}
+		} finally {
+			failing.close();
+		}
+	}
+
+	private void awaitLevel(int level) throws InterruptedException {
+		while (reservoir.getLevel() < level)
+			Thread.sleep(10);
+	}
+}